@@ -0,0 +1,255 @@
+package io.github.axelkern.hack.decompiler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.stream.Stream;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+/**
+ * End-to-end benchmark of the command line decompiler. A fixed corpus (the
+ * golden programs of the tests) and a generated program are decompiled in each
+ * mode of the decompiler. The output of the corpus is checked against the
+ * golden .jack files next to the .vm files, the output of every mode is
+ * checked against the sequential mode.
+ * For each mode the throughput (VM lines per second), the wall time and the
+ * peak heap usage are reported.<br>
+ * <br>
+ * The golden files can be kept in a separate directory tree, i.e. for the
+ * nand2tetris sample programs, whose directories contain the original Jack
+ * sources next to the compiled .vm files.
+ */
+@Command(name = "corpus-benchmark", mixinStandardHelpOptions = true, description = "Decompiles a corpus in each mode of the decompiler and checks the results")
+public class CorpusBenchmark implements Callable<Integer> {
+
+    /* @formatter:off */
+    private static final Map<String, List<String>> MODES = new LinkedHashMap<>();
+    static {
+        MODES.put("sequential", List.of());
+        MODES.put("parallel", List.of("-j", "0"));
+        MODES.put("cfg", List.of("--structuring", "CFG"));
+        MODES.put("batch", List.of("-r", "-j", "0"));
+        MODES.put("cache-cold", List.of("--cache", "${cache}"));
+        MODES.put("cache-warm", List.of("--cache", "${cache}"));
+    }
+    /* @formatter:on */
+
+    @Option(names = "--corpus", paramLabel = "DIR", defaultValue = "../src/test/resources/io/github/axelkern/hack/decompiler/golden", description = "Directory containing one directory per program (default: the golden programs of the tests)")
+    Path corpus;
+    @Option(names = "--golden", paramLabel = "DIR", description = "Directory of the golden files, mirroring the corpus (default: the corpus)")
+    Path golden;
+    @Option(names = "--classes", paramLabel = "N", defaultValue = "40", description = "Classes of the generated program")
+    int classes;
+    @Option(names = "--functions", paramLabel = "N", defaultValue = "20", description = "Functions per class of the generated program")
+    int functions;
+    @Option(names = "--statements", paramLabel = "N", defaultValue = "40", description = "Statements per function of the generated program")
+    int statements;
+    @Option(names = "--iterations", paramLabel = "N", defaultValue = "3", description = "Runs per mode (the fastest run is reported)")
+    int iterations;
+    @Option(names = "--mode", paramLabel = "MODE", description = "Modes to be run (default: all)")
+    List<String> modes;
+    @Option(names = "--update-golden", negatable = false, description = "Replace the golden files by the output of the sequential mode")
+    boolean updateGolden;
+
+    private Path workDir;
+    private final Map<Path, String> reference = new TreeMap<>(); // output of the sequential mode
+    private int failures;
+
+    public static void main(String[] args) {
+        System.exit(new CommandLine(new CorpusBenchmark()).execute(args));
+    }
+
+    @Override
+    public Integer call() throws IOException {
+        if (golden == null) {
+            golden = corpus;
+        }
+        workDir = Files.createTempDirectory("corpus-benchmark");
+        try {
+            long vmLines = prepare();
+            System.out.printf("%d programs, %d VM lines%n", getPrograms().size(), vmLines);
+            System.out.printf("%-12s %10s %14s %10s  %s%n", "mode", "wall ms", "VM lines/s", "heap MB", "result");
+            List<String> selected = new ArrayList<>(modes != null ? modes : MODES.keySet());
+            selected.remove("sequential");
+            selected.add(0, "sequential"); // reference for all other modes
+            for (String mode : selected) {
+                if (!MODES.containsKey(mode)) {
+                    System.err.println("Unknown mode " + mode);
+                    return 1;
+                }
+                runMode(mode, vmLines);
+            }
+        } finally {
+            delete(workDir);
+        }
+        return failures > 0 ? 1 : 0;
+    }
+
+    /**
+     * Copies the .vm files of the corpus and writes the generated program into
+     * the working directory.
+     *
+     * @return Returns the number of VM lines.
+     */
+    private long prepare() throws IOException {
+        long vmLines = 0;
+        try (Stream<Path> files = Files.walk(corpus)) {
+            for (Path file : files.filter(file -> file.toString().endsWith(".vm")).toList()) {
+                Path target = workDir.resolve("programs").resolve(corpus.relativize(file));
+                Files.createDirectories(target.getParent());
+                Files.copy(file, target);
+                vmLines += Files.readAllLines(file).size();
+            }
+        }
+        Path generated = workDir.resolve("programs").resolve("generated");
+        Files.createDirectories(generated);
+        for (Map.Entry<String, List<String>> vmClass : VmGenerator.program(classes, functions, statements, 1)
+                .entrySet()) {
+            Files.write(generated.resolve(vmClass.getKey() + ".vm"), vmClass.getValue());
+            vmLines += vmClass.getValue().size();
+        }
+        return vmLines;
+    }
+
+    private List<Path> getPrograms() throws IOException {
+        try (Stream<Path> dirs = Files.list(workDir.resolve("programs"))) {
+            return dirs.filter(Files::isDirectory).sorted().toList();
+        }
+    }
+
+    private void runMode(String mode, long vmLines) throws IOException {
+        Path cache = workDir.resolve("cache");
+        List<String> args = new ArrayList<>();
+        for (String arg : MODES.get(mode)) {
+            args.add(arg.replace("${cache}", cache.toString()));
+        }
+        args.add("--overwrite");
+        long bestTime = Long.MAX_VALUE;
+        long peakHeap = 0;
+        for (int i = 0; i < iterations; i++) {
+            if (mode.equals("cache-cold")) {
+                delete(cache);
+            }
+            deleteOutput();
+            System.gc();
+            List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                    .filter(pool -> pool.getType() == MemoryType.HEAP).toList();
+            pools.forEach(MemoryPoolMXBean::resetPeakUsage);
+            long startTime = System.nanoTime();
+            int exitCode = 0;
+            if (args.contains("-r")) { // all programs at once
+                exitCode = decompile(workDir.resolve("programs"), args);
+            } else {
+                for (Path program : getPrograms()) {
+                    exitCode |= decompile(program, args);
+                }
+            }
+            long time = System.nanoTime() - startTime;
+            if (exitCode != 0) {
+                System.out.printf("%-12s failed with exit code %d%n", mode, exitCode);
+                failures++;
+                return;
+            }
+            bestTime = Math.min(bestTime, time);
+            peakHeap = Math.max(peakHeap, pools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum());
+        }
+        System.out.printf("%-12s %10.1f %14.0f %10.1f  %s%n", mode, bestTime / 1e6, vmLines / (bestTime / 1e9),
+                peakHeap / 1048576.0, check(mode));
+    }
+
+    /**
+     * Runs the command line decompiler in this JVM.
+     */
+    private static int decompile(Path path, List<String> args) {
+        List<String> commandLine = new ArrayList<>(args);
+        commandLine.add(0, path.toString());
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        try {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+            return new CommandLine(new Decompiler()).execute(commandLine.toArray(new String[0]));
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+    }
+
+    /**
+     * Compares the output with the golden files and the output of the
+     * sequential mode.
+     *
+     * @return Returns the result of the check.
+     */
+    private String check(String mode) throws IOException {
+        List<String> differences = new ArrayList<>();
+        Map<Path, String> output = new TreeMap<>();
+        try (Stream<Path> files = Files.walk(workDir.resolve("programs"))) {
+            for (Path file : files.filter(file -> file.toString().endsWith(".jack")).toList()) {
+                output.put(workDir.resolve("programs").relativize(file), read(file));
+            }
+        }
+        if (mode.equals("sequential")) {
+            reference.putAll(output);
+            for (Map.Entry<Path, String> jackFile : output.entrySet()) {
+                Path goldenFile = golden.resolve(jackFile.getKey());
+                if (jackFile.getKey().startsWith("generated")) {
+                    continue;
+                } else if (updateGolden) {
+                    Files.createDirectories(goldenFile.getParent());
+                    Files.writeString(goldenFile, jackFile.getValue());
+                } else if (!Files.exists(goldenFile) || !read(goldenFile).equals(jackFile.getValue())) {
+                    differences.add(jackFile.getKey().toString());
+                }
+            }
+        } else {
+            for (Map.Entry<Path, String> jackFile : reference.entrySet()) {
+                if (!jackFile.getValue().equals(output.get(jackFile.getKey()))) {
+                    differences.add(jackFile.getKey().toString());
+                }
+            }
+        }
+        if (differences.isEmpty()) {
+            return updateGolden && mode.equals("sequential") ? "golden files updated" : "ok";
+        }
+        failures++;
+        return "DIFFERENT: " + String.join(", ", differences);
+    }
+
+    private static String read(Path file) throws IOException {
+        return Files.readString(file).replace("\r\n", "\n");
+    }
+
+    private void deleteOutput() throws IOException {
+        try (Stream<Path> files = Files.walk(workDir.resolve("programs"))) {
+            for (Path file : files.filter(file -> file.toString().endsWith(".jack")).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (Files.exists(path)) {
+            try (Stream<Path> files = Files.walk(path)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package io.github.axelkern.hack.decompiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.axelkern.hack.jackcompiler.Scanner;
+import io.github.axelkern.hack.jackcompiler.Scanner.Token;
+import io.github.axelkern.hack.jackcompiler.TokenType;
+
+/**
+ * Measures scanning and parsing the bundled decompiler.def as well as loading
+ * its binary snapshot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeclarationBenchmark {
+
+    private String declarations;
+    private byte[] snapshot;
+
+    @Setup
+    public void setup() throws IOException {
+        try (InputStream in = DeclarationReader.class.getResourceAsStream("decompiler.def")) {
+            declarations = new String(in.readAllBytes());
+        }
+        SymbolTable symbols = new SymbolTable();
+        DeclarationReader.readDeclarations(symbols, declarations);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        symbols.writeSnapshot(new DataOutputStream(out));
+        snapshot = out.toByteArray();
+    }
+
+    @Benchmark
+    public List<Token> scanTokens() {
+        return new Scanner(declarations).scanTokens();
+    }
+
+    @Benchmark
+    public int nextToken() {
+        Scanner scanner = new Scanner(declarations);
+        int tokens = 0;
+        while (scanner.nextToken() != TokenType.EOF) {
+            tokens++;
+        }
+        return tokens;
+    }
+
+    @Benchmark
+    public SymbolTable readDeclarations() {
+        SymbolTable symbols = new SymbolTable();
+        DeclarationReader.readDeclarations(symbols, declarations);
+        return symbols;
+    }
+
+    @Benchmark
+    public SymbolTable readSnapshot() throws IOException {
+        return SymbolTable.readSnapshot(snapshot);
+    }
+
+    /**
+     * Loads the snapshot and looks up the entries of a typical program, so that
+     * a few classes are decoded.
+     */
+    @Benchmark
+    public String readSnapshotAndLookup() throws IOException {
+        SymbolTable symbols = SymbolTable.readSnapshot(snapshot);
+        symbols.get("Output.printString", "arg0");
+        symbols.get("Output.printInt", "arg0");
+        symbols.get("Keyboard.readInt", "RETURN");
+        return symbols.get("String.appendChar", "arg1");
+    }
+}
@@ -0,0 +1,81 @@
+package io.github.axelkern.hack.decompiler;
+
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures parsing, analyzing and decompiling a single class (one function
+ * after another and all functions concurrently).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EngineBenchmark {
+
+    @Param({ "small", "large", "deepExpression", "longString", "manyLocals" })
+    public String input;
+
+    private List<String> source;
+    private String className;
+    private VmCode vmCode;
+    private DecompilationEngine analyzed;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setup() {
+        source = VmGenerator.generate(input);
+        className = VmGenerator.getClassName(source);
+        vmCode = VmCode.parse(source);
+        analyzed = new DecompilationEngine(DecompilerOptions.DEFAULT);
+        analyzed.analyze(Map.of(className, vmCode));
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public VmCode parse() {
+        return VmCode.parse(source);
+    }
+
+    @Benchmark
+    public int analyze() {
+        return new DecompilationEngine(DecompilerOptions.DEFAULT).analyze(Map.of(className, vmCode));
+    }
+
+    @Benchmark
+    public DecompilationEngine decompile() {
+        DecompilationEngine engine = analyzed.fork();
+        engine.decompile(className, vmCode, Writer.nullWriter());
+        return engine;
+    }
+
+    @Benchmark
+    public DecompilationEngine decompileConcurrently() {
+        DecompilationEngine engine = analyzed.fork();
+        engine.decompile(className, vmCode, Writer.nullWriter(), pool);
+        return engine;
+    }
+}
@@ -0,0 +1,64 @@
+package io.github.axelkern.hack.decompiler;
+
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the expression steps of the engine through the regular decompile
+ * API. Each input is a function dominated by a single step: rendering a nested
+ * expression with its parentheses (operands), decoding a string constant
+ * (literal) or renaming class typed locals (renaming).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExpressionBenchmark {
+
+    @Param({ "operands", "literal", "renaming" })
+    public String input;
+
+    @Param({ "10", "500" })
+    public int size;
+
+    private String className;
+    private VmCode vmCode;
+    private DecompilationEngine analyzed;
+
+    @Setup
+    public void setup() {
+        List<String> source = switch (input) {
+        case "operands" -> VmGenerator.nestedOperands(size);
+        case "literal" -> VmGenerator.longString(1, size);
+        case "renaming" -> VmGenerator.manyLocals(size);
+        default -> throw new IllegalArgumentException("Unknown input " + input);
+        };
+        className = VmGenerator.getClassName(source);
+        vmCode = VmCode.parse(source);
+        analyzed = new DecompilationEngine(DecompilerOptions.DEFAULT);
+        analyzed.analyze(Map.of(className, vmCode));
+    }
+
+    @Benchmark
+    public DecompilationEngine decompile() {
+        DecompilationEngine engine = analyzed.fork();
+        engine.decompile(className, vmCode, Writer.nullWriter());
+        return engine;
+    }
+}
@@ -0,0 +1,75 @@
+package io.github.axelkern.hack.decompiler;
+
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures writing a function with many statements, with and without renaming
+ * its locals and the fields of its class. Each line contains a string literal
+ * with a brace and a generic name, which must be left untouched.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JackWriterBenchmark {
+
+    @Param({ "0", "100" })
+    public int renamedVars;
+
+    @Param({ "0", "20" })
+    public int renamedFields;
+
+    @Param({ "1000" })
+    public int statements;
+
+    private String[] lines;
+    private Map<String, String> names;
+    private Map<String, String> classNames;
+
+    @Setup
+    public void setup() {
+        lines = new String[statements];
+        for (int i = 0; i < statements; i++) {
+            lines[i] = "let local" + i % 100 + " = (local" + (i + 1) % 100 + " + arg" + i % 7
+                    + ") * field" + i % 20 + " - Output.printString(\"{local" + i % 100 + "\");";
+        }
+        names = new HashMap<>();
+        for (int i = 0; i < renamedVars; i++) {
+            names.put("local" + i, "string_local" + i);
+        }
+        classNames = new HashMap<>();
+        for (int i = 0; i < renamedFields; i++) {
+            classNames.put("field" + i, "array_field" + i);
+        }
+    }
+
+    @Benchmark
+    public JackWriter write() {
+        JackWriter writer = new JackWriter(Writer.nullWriter());
+        writer.setClassNames(classNames);
+        writer.line("function void main() {");
+        for (String line : lines) {
+            writer.line(line);
+        }
+        writer.line("}");
+        writer.flush(names);
+        return writer;
+    }
+}
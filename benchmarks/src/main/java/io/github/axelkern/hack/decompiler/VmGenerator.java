@@ -0,0 +1,276 @@
+package io.github.axelkern.hack.decompiler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates VM code of typical and pathological classes for the benchmarks.
+ * The generated code is deterministic, so that results of different runs can
+ * be compared.
+ */
+public final class VmGenerator {
+
+    private VmGenerator() {
+    }
+
+    /**
+     * Returns the VM code of the specified input class.
+     *
+     * @param input One of small, large, deepExpression, longString and
+     *              manyLocals.
+     */
+    public static List<String> generate(String input) {
+        return switch (input) {
+        case "small" -> small();
+        case "large" -> large(200);
+        case "deepExpression" -> deepExpression(500);
+        case "longString" -> longString(20, 400);
+        case "manyLocals" -> manyLocals(300);
+        default -> throw new IllegalArgumentException("Unknown input " + input);
+        };
+    }
+
+    /**
+     * A single function with a loop and a call, as written by beginners.
+     */
+    public static List<String> small() {
+        return List.of("function Small.main 1", "push constant 0", "pop local 0", "label WHILE_EXP0", "push local 0",
+                "push constant 10", "lt", "not", "if-goto WHILE_END0", "push local 0", "call Output.printInt 1",
+                "pop temp 0", "push local 0", "push constant 1", "add", "pop local 0", "goto WHILE_EXP0",
+                "label WHILE_END0", "push constant 0", "return");
+    }
+
+    /**
+     * A class with many methods mixing arithmetics, loops, branches, string
+     * constants, array accesses and calls.
+     */
+    public static List<String> large(int functions) {
+        return generateClass("Large", 1, functions, 20, new Random(1));
+    }
+
+    /**
+     * Generates a program of classes like large(), which additionally call each
+     * other.
+     *
+     * @param classes    The number of classes (named C0, C1, ...).
+     * @param functions  The number of functions per class.
+     * @param statements The number of statements per function.
+     * @param seed       The seed of the random generator.
+     * @return Returns the VM code mapped by class name.
+     */
+    public static Map<String, List<String>> program(int classes, int functions, int statements, long seed) {
+        Random random = new Random(seed);
+        Map<String, List<String>> program = new LinkedHashMap<>();
+        for (int c = 0; c < classes; c++) {
+            program.put("C" + c, generateClass("C" + c, classes, functions, statements, random));
+        }
+        return program;
+    }
+
+    /**
+     * Generates a class. Calls go to the next function of a random class of the
+     * program, if the class name ends with its number (i.e. C3), otherwise to the
+     * next function of the same class.
+     */
+    private static List<String> generateClass(String className, int classes, int functions, int statements,
+            Random random) {
+        List<String> code = new ArrayList<>();
+        for (int f = 0; f < functions; f++) {
+            code.add("function " + className + ".f" + f + " 3");
+            code.add("push argument 0");
+            code.add("pop pointer 0");
+            int label = 0;
+            for (int s = 0; s < statements; s++) {
+                switch (random.nextInt(5)) {
+                case 0 -> code.addAll(List.of("push local " + s % 3, "push argument 1", "add", "push constant " + s,
+                        "call Math.multiply 2", "pop local " + (s + 1) % 3));
+                case 1 -> {
+                    code.addAll(List.of("label WHILE_EXP" + label, "push local 0", "push constant " + s, "lt", "not",
+                            "if-goto WHILE_END" + label, "push local 0", "push constant 1", "add", "pop local 0",
+                            "goto WHILE_EXP" + label, "label WHILE_END" + label));
+                    label++;
+                }
+                case 2 -> {
+                    code.addAll(List.of("push this 0", "push local 1", "eq", "if-goto IF_TRUE" + label,
+                            "goto IF_FALSE" + label, "label IF_TRUE" + label));
+                    code.addAll(stringConstant("abc"));
+                    code.addAll(List.of("call Output.printString 1", "pop temp 0", "goto IF_END" + label,
+                            "label IF_FALSE" + label, "push local 2", "push this 1", "add", "pop pointer 1",
+                            "push that 0", "pop local 2", "label IF_END" + label));
+                    label++;
+                }
+                case 3 -> {
+                    String calledClass = classes > 1 ? "C" + random.nextInt(classes) : className;
+                    code.addAll(List.of("push pointer 0", "push local " + s % 3,
+                            "call " + calledClass + ".f" + (f + 1) % functions + " 2", "pop temp 0"));
+                }
+                default -> code.addAll(List.of("push static " + s % 4, "push local 2", "sub", "neg",
+                        "pop this " + s % 2));
+                }
+            }
+            code.add("push local 0");
+            code.add("return");
+        }
+        return code;
+    }
+
+    /**
+     * Writes a synthetic program of configurable size, so that the scaling of
+     * the decompiler can be measured.
+     *
+     * @param args Directory, number of classes, functions per class, statements
+     *             per function and optionally the seed.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: VmGenerator <dir> <classes> <functions> <statements> [seed]");
+            System.exit(1);
+        }
+        Path dir = Paths.get(args[0]);
+        Files.createDirectories(dir);
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 1;
+        Map<String, List<String>> program = program(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                Integer.parseInt(args[3]), seed);
+        for (Map.Entry<String, List<String>> vmClass : program.entrySet()) {
+            Files.write(dir.resolve(vmClass.getKey() + ".vm"), vmClass.getValue());
+        }
+    }
+
+    /**
+     * Two expressions nested to the specified depth, one growing to the left and
+     * one growing to the right.
+     */
+    public static List<String> deepExpression(int depth) {
+        List<String> code = new ArrayList<>();
+        code.add("function Deep.left 1");
+        code.add("push argument 0");
+        for (int i = 1; i <= depth; i++) {
+            code.add("push constant " + i);
+            code.add(i % 3 == 0 ? "call Math.multiply 2" : i % 3 == 1 ? "add" : "sub");
+        }
+        code.add("pop local 0");
+        code.add("push local 0");
+        code.add("return");
+        code.add("function Deep.right 1");
+        for (int i = 1; i <= depth; i++) {
+            code.add("push argument 0");
+        }
+        for (int i = 1; i < depth; i++) {
+            code.add(i % 2 == 0 ? "and" : "or");
+        }
+        code.add("pop local 0");
+        code.add("push local 0");
+        code.add("return");
+        return code;
+    }
+
+    /**
+     * A function assigning a single expression of the specified size, which
+     * nests binary operands on both sides, call arguments and array indices, so
+     * that most operands need parentheses.
+     */
+    public static List<String> nestedOperands(int size) {
+        List<String> code = new ArrayList<>();
+        code.add("function Operands.main 1");
+        nestedOperand(code, size);
+        code.add("pop local 0");
+        code.add("push local 0");
+        code.add("return");
+        return code;
+    }
+
+    private static void nestedOperand(List<String> code, int size) {
+        if (size == 0) {
+            code.add("push argument 0");
+            return;
+        }
+        switch (size % 4) {
+        case 0 -> {
+            nestedOperand(code, size - 1);
+            code.addAll(List.of("push argument 1", "add"));
+        }
+        case 1 -> {
+            code.add("push argument 1");
+            nestedOperand(code, size - 1);
+            code.add("call Math.multiply 2");
+        }
+        case 2 -> {
+            nestedOperand(code, size - 1);
+            code.addAll(List.of("push argument 2", "call Math.max 2"));
+        }
+        default -> {
+            code.add("push argument 3");
+            nestedOperand(code, size - 1);
+            code.addAll(List.of("add", "pop pointer 1", "push that 0"));
+        }
+        }
+    }
+
+    /**
+     * A function printing the specified number of long string constants (i.e. a
+     * help text).
+     */
+    public static List<String> longString(int strings, int length) {
+        List<String> code = new ArrayList<>();
+        code.add("function Text.print 0");
+        StringBuilder text = new StringBuilder();
+        for (int s = 0; s < strings; s++) {
+            text.setLength(0);
+            for (int i = 0; i < length; i++) {
+                text.append((char) ('a' + (s + i) % 26));
+            }
+            code.addAll(stringConstant(text.toString()));
+            code.add("call Output.printString 1");
+            code.add("pop temp 0");
+        }
+        code.add("push constant 0");
+        code.add("return");
+        return code;
+    }
+
+    /**
+     * A function with many locals of a class type, which are all renamed.
+     */
+    public static List<String> manyLocals(int locals) {
+        List<String> code = new ArrayList<>();
+        code.add("function Locals.main " + locals);
+        for (int i = 0; i < locals; i++) {
+            code.addAll(stringConstant("x"));
+            code.add("pop local " + i);
+        }
+        for (int i = locals - 1; i >= 0; i--) {
+            code.add("push local " + i);
+            code.add("call Output.printString 1");
+            code.add("pop temp 0");
+        }
+        code.add("push constant 0");
+        code.add("return");
+        return code;
+    }
+
+    private static List<String> stringConstant(String s) {
+        List<String> code = new ArrayList<>();
+        code.add("push constant " + s.length());
+        code.add("call String.new 1");
+        for (int i = 0; i < s.length(); i++) {
+            code.add("push constant " + (int) s.charAt(i));
+            code.add("call String.appendChar 2");
+        }
+        return code;
+    }
+
+    /**
+     * Returns the class name of the generated code.
+     */
+    public static String getClassName(List<String> code) {
+        String first = code.get(0);
+        return first.substring(first.indexOf(' ') + 1, first.indexOf('.'));
+    }
+}
@@ -0,0 +1,65 @@
+package io.github.axelkern.hack.decompiler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The commands of the VM language.
+ */
+enum Command {
+    /* @formatter:off */
+    // Arithmetic and logical commands.
+    ADD("add"),
+    SUB("sub"),
+    NEG("neg"),
+    EQ("eq"),
+    GT("gt"),
+    LT("lt"),
+    AND("and"),
+    OR("or"),
+    NOT("not"),
+
+    // Memory access commands.
+    PUSH("push"),
+    POP("pop"),
+
+    // Branching commands.
+    LABEL("label"),
+    GOTO("goto"),
+    IF_GOTO("if-goto"),
+
+    // Function commands.
+    FUNCTION("function"),
+    CALL("call"),
+    RETURN("return"),
+
+    // Anything else (invalid VM code).
+    UNKNOWN(null);
+    /* @formatter:on */
+
+    private static final Map<String, Command> commands;
+    static {
+        commands = new HashMap<>();
+        for (Command c : Command.values()) {
+            if (c.mnemonic != null) {
+                commands.put(c.mnemonic, c);
+            }
+        }
+    }
+
+    public final String mnemonic;
+
+    Command(String mnemonic) {
+        this.mnemonic = mnemonic;
+    }
+
+    /**
+     * Returns the command matching the specified mnemonic.
+     *
+     * @param mnemonic The mnemonic as written in VM code (i.e. if-goto).
+     * @return Returns the matching command or UNKNOWN.
+     */
+    static Command of(String mnemonic) {
+        return commands.getOrDefault(mnemonic, UNKNOWN);
+    }
+}
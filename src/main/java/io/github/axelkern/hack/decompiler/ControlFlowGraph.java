@@ -0,0 +1,380 @@
+package io.github.axelkern.hack.decompiler;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Control flow graph of a single VM function. The graph consists of basic
+ * blocks and a virtual exit block that follows every return. Dominators and
+ * post-dominators are computed with the Lengauer-Tarjan algorithm in
+ * O(m log n) time for m edges and n blocks, independent of the shape of the
+ * control flow. Loop headers are the targets of back edges (edges to a
+ * dominating block).<br>
+ * <br>
+ * Based on this information the graph decides how an if-goto command is to be
+ * structured, independent of the naming and the order of the labels.
+ */
+final class ControlFlowGraph {
+
+    /**
+     * Describes how an if-goto command is structured.
+     *
+     * @param loop      The if-goto is the condition of a while loop.
+     * @param inverted  The jump leaves the block, so the condition has to be
+     *                  inverted. Otherwise the jump enters the block and is
+     *                  directly followed by a goto leaving it.
+     * @param bodyStart The position of the first command of the body.
+     * @param bodyEnd   The position of the label that ends the body or -1 if the
+     *                  body ends with the function.
+     * @param elseEnd   The position of the label that ends the else-body or -1 if
+     *                  there is no else-body.
+     */
+    record Branch(boolean loop, boolean inverted, int bodyStart, int bodyEnd, int elseEnd) {
+    }
+
+    private final VmCode code;
+    private final int start;
+    private final int end;
+    private final int numBlocks; // the exit block has the index numBlocks
+    private final int[] blockStart; // position of the first command of each block
+    private final int[] blockOf; // block containing each command (position - start)
+    private final int[] succOffset; // successors of block b: succ[succOffset[b]..succOffset[b+1]-1]
+    private final int[] succ;
+    private final int[] predOffset; // predecessors of block b: pred[predOffset[b]..predOffset[b+1]-1]
+    private final int[] pred;
+    private final int[] idom; // immediate dominators (-1 if unreachable)
+    private final int[] ipdom; // immediate post-dominators (-1 if the exit is unreachable)
+    private final BitSet[] loopBody; // blocks of the natural loop for each loop header, else null
+
+    /**
+     * Builds the control flow graph of the commands between start and end.
+     *
+     * @param code  The VM code of the class.
+     * @param start The position of the first command of the function body.
+     * @param end   The position after the last command of the function.
+     */
+    ControlFlowGraph(VmCode code, int start, int end) {
+        this.code = code;
+        this.start = start;
+        this.end = end;
+        // find leaders
+        blockOf = new int[end - start];
+        int blocks = 0;
+        boolean leader = true;
+        for (int line = start; line < end; line++) {
+            Command command = code.get(line).command();
+            if (leader || command == Command.LABEL) {
+                blocks++;
+            }
+            blockOf[line - start] = blocks - 1;
+            leader = command == Command.GOTO || command == Command.IF_GOTO || command == Command.RETURN;
+        }
+        numBlocks = blocks;
+        blockStart = new int[numBlocks + 1];
+        blockStart[numBlocks] = end;
+        for (int line = end - 1; line >= start; line--) {
+            blockStart[blockOf[line - start]] = line;
+        }
+        // connect blocks
+        succOffset = new int[numBlocks + 2];
+        int[] targets = new int[2 * numBlocks];
+        int numEdges = 0;
+        for (int b = 0; b < numBlocks; b++) {
+            succOffset[b] = numEdges;
+            int last = blockStart[b + 1] - 1;
+            Command command = code.get(last).command();
+            if (command == Command.GOTO || command == Command.IF_GOTO) {
+                int label = code.getLabelPos(last);
+                targets[numEdges++] = label >= start && label < end ? blockOf[label - start] : numBlocks;
+            }
+            if (command == Command.RETURN) {
+                targets[numEdges++] = numBlocks;
+            } else if (command != Command.GOTO) { // fall through
+                targets[numEdges++] = b + 1; // the exit if it is the last block
+            }
+        }
+        succOffset[numBlocks] = numEdges;
+        succOffset[numBlocks + 1] = numEdges; // the exit has no successors
+        succ = Arrays.copyOf(targets, numEdges);
+        predOffset = new int[numBlocks + 2];
+        for (int target : succ) {
+            predOffset[target + 1]++;
+        }
+        for (int b = 0; b <= numBlocks; b++) {
+            predOffset[b + 1] += predOffset[b];
+        }
+        pred = new int[numEdges];
+        int[] fill = Arrays.copyOf(predOffset, numBlocks + 1);
+        for (int b = 0; b < numBlocks; b++) {
+            for (int e = succOffset[b]; e < succOffset[b + 1]; e++) {
+                pred[fill[succ[e]]++] = b;
+            }
+        }
+        // analyze
+        idom = numBlocks > 0 ? computeDominators(0, succOffset, succ, predOffset, pred)
+                : new int[] { 0 };
+        ipdom = computeDominators(numBlocks, predOffset, pred, succOffset, succ);
+        loopBody = findLoops();
+    }
+
+    /**
+     * Computes the immediate dominators of all nodes of a graph with the simple
+     * version of the Lengauer-Tarjan algorithm (semidominators and path
+     * compression). It takes O(m log n) time on any graph, so the time doesn't
+     * depend on the shape of the control flow. Both the depth first search and
+     * the path compression are iterative, so deep graphs can't overflow the
+     * stack.
+     *
+     * @param root      The root node.
+     * @param outOffset Offsets of the edges leaving each node.
+     * @param out       Targets of the edges leaving each node.
+     * @param inOffset  Offsets of the edges entering each node.
+     * @param in        Sources of the edges entering each node.
+     * @return Returns the immediate dominator of each node, the root itself for
+     *         the root and -1 for unreachable nodes.
+     */
+    private static int[] computeDominators(int root, int[] outOffset, int[] out, int[] inOffset, int[] in) {
+        int numNodes = outOffset.length - 1;
+        // preorder numbering by an iterative depth first search, all other arrays are indexed by number
+        int[] number = new int[numNodes];
+        Arrays.fill(number, -1);
+        int[] vertex = new int[numNodes]; // node of each number
+        int[] parent = new int[numNodes]; // number of the parent in the search tree
+        int[] stack = new int[numNodes];
+        int[] nextEdge = new int[numNodes];
+        int count = 0;
+        int sp = 0;
+        stack[sp++] = root;
+        number[root] = count;
+        vertex[count++] = root;
+        nextEdge[root] = outOffset[root];
+        while (sp > 0) {
+            int node = stack[sp - 1];
+            if (nextEdge[node] < outOffset[node + 1]) {
+                int target = out[nextEdge[node]++];
+                if (number[target] < 0) {
+                    number[target] = count;
+                    vertex[count] = target;
+                    parent[count++] = number[node];
+                    nextEdge[target] = outOffset[target];
+                    stack[sp++] = target;
+                }
+            } else {
+                sp--;
+            }
+        }
+        int[] semi = new int[count];
+        int[] label = new int[count];
+        int[] ancestor = new int[count];
+        int[] idom = new int[count];
+        int[] bucket = new int[count]; // first node with this semidominator (linked by nextInBucket)
+        int[] nextInBucket = new int[count];
+        for (int v = 0; v < count; v++) {
+            semi[v] = v;
+            label[v] = v;
+            ancestor[v] = -1;
+            bucket[v] = -1;
+        }
+        for (int w = count - 1; w > 0; w--) {
+            for (int e = inOffset[vertex[w]]; e < inOffset[vertex[w] + 1]; e++) {
+                int v = number[in[e]];
+                if (v >= 0) { // reachable
+                    int u = eval(v, semi, label, ancestor, stack);
+                    if (semi[u] < semi[w]) {
+                        semi[w] = semi[u];
+                    }
+                }
+            }
+            nextInBucket[w] = bucket[semi[w]];
+            bucket[semi[w]] = w;
+            int p = parent[w];
+            ancestor[w] = p; // link
+            for (int v = bucket[p]; v >= 0; v = nextInBucket[v]) {
+                int u = eval(v, semi, label, ancestor, stack);
+                idom[v] = semi[u] < semi[v] ? u : p;
+            }
+            bucket[p] = -1;
+        }
+        int[] dom = new int[numNodes];
+        Arrays.fill(dom, -1);
+        dom[root] = root;
+        for (int w = 1; w < count; w++) {
+            if (idom[w] != semi[w]) {
+                idom[w] = idom[idom[w]];
+            }
+            dom[vertex[w]] = vertex[idom[w]];
+        }
+        return dom;
+    }
+
+    /**
+     * Returns the node with the smallest semidominator on the path from v to the
+     * root of its tree in the forest built so far (excluding the root) and
+     * compresses the path.
+     *
+     * @param stack Space for the path (at least as large as the forest).
+     */
+    private static int eval(int v, int[] semi, int[] label, int[] ancestor, int[] stack) {
+        if (ancestor[v] < 0) {
+            return v;
+        }
+        int sp = 0;
+        for (int x = v; ancestor[ancestor[x]] >= 0; x = ancestor[x]) {
+            stack[sp++] = x;
+        }
+        while (sp > 0) { // from the root downwards
+            int x = stack[--sp];
+            int a = ancestor[x];
+            if (semi[label[a]] < semi[label[x]]) {
+                label[x] = label[a];
+            }
+            ancestor[x] = ancestor[a];
+        }
+        return label[v];
+    }
+
+    /**
+     * Finds all back edges and collects the blocks of the natural loop of each
+     * loop header.
+     */
+    private BitSet[] findLoops() {
+        BitSet[] loops = new BitSet[numBlocks];
+        if (numBlocks == 0) {
+            return loops;
+        }
+        // number the dominator tree, so that dominance can be checked in constant time
+        int[] childOffset = new int[numBlocks + 1];
+        for (int b = 1; b < numBlocks; b++) {
+            if (idom[b] >= 0) {
+                childOffset[idom[b] + 1]++;
+            }
+        }
+        for (int b = 0; b < numBlocks; b++) {
+            childOffset[b + 1] += childOffset[b];
+        }
+        int[] children = new int[childOffset[numBlocks]];
+        int[] fill = Arrays.copyOf(childOffset, numBlocks);
+        for (int b = 1; b < numBlocks; b++) {
+            if (idom[b] >= 0) {
+                children[fill[idom[b]]++] = b;
+            }
+        }
+        int[] pre = new int[numBlocks];
+        int[] post = new int[numBlocks];
+        int[] stack = new int[numBlocks];
+        int[] nextChild = new int[numBlocks];
+        int counter = 0;
+        int sp = 0;
+        stack[sp++] = 0;
+        pre[0] = counter++;
+        nextChild[0] = childOffset[0];
+        while (sp > 0) {
+            int node = stack[sp - 1];
+            if (nextChild[node] < childOffset[node + 1]) {
+                int child = children[nextChild[node]++];
+                pre[child] = counter++;
+                nextChild[child] = childOffset[child];
+                stack[sp++] = child;
+            } else {
+                post[node] = counter++;
+                sp--;
+            }
+        }
+        // collect natural loops
+        int[] work = new int[numBlocks];
+        for (int b = 0; b < numBlocks; b++) {
+            if (idom[b] < 0) {
+                continue; // unreachable
+            }
+            for (int e = succOffset[b]; e < succOffset[b + 1]; e++) {
+                int h = succ[e];
+                if (h < numBlocks && pre[h] <= pre[b] && post[b] <= post[h]) { // h dominates b
+                    if (loops[h] == null) {
+                        loops[h] = new BitSet(numBlocks);
+                        loops[h].set(h);
+                    }
+                    BitSet body = loops[h];
+                    int top = 0;
+                    if (!body.get(b)) {
+                        body.set(b);
+                        work[top++] = b;
+                    }
+                    while (top > 0) {
+                        int node = work[--top];
+                        for (int p = predOffset[node]; p < predOffset[node + 1]; p++) {
+                            int source = pred[p];
+                            if (idom[source] >= 0 && !body.get(source)) {
+                                body.set(source);
+                                work[top++] = source;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return loops;
+    }
+
+    /**
+     * Returns how the if-goto command at the specified position is to be
+     * structured.
+     *
+     * @param line The position of the if-goto command.
+     * @return Returns the structure of the branch.
+     */
+    Branch getBranch(int line) {
+        int label = code.getLabelPos(line);
+        if (label < start || label >= end) { // jump to nowhere, treat like an if without else
+            return new Branch(false, true, line + 1, label, -1);
+        }
+        int block = blockOf[line - start];
+        int target = blockOf[label - start];
+        int next = block + 1; // fall through (the exit if it is the last block)
+        boolean forward = isForwardGoto(next);
+        if (loopBody[block] != null) { // while loop
+            if (loopBody[block].get(target) && forward) { // jumps into the body, goto leaves the loop
+                return new Branch(true, false, label + 1, code.getLabelPos(blockStart[next]), -1);
+            }
+            return new Branch(true, true, line + 1, label, -1);
+        }
+        int bodyStart;
+        int bodyEnd;
+        boolean inverted;
+        if (forward) { // jumps into the body, goto leaves it
+            inverted = false;
+            bodyStart = label + 1;
+            bodyEnd = code.getLabelPos(blockStart[next]);
+        } else {
+            inverted = true;
+            bodyStart = line + 1;
+            bodyEnd = label;
+        }
+        int elseEnd = -1;
+        if (bodyEnd > bodyStart && bodyEnd < end) {
+            int merge = ipdom[block];
+            if (merge >= 0 && merge < numBlocks) { // both branches meet again
+                if (blockStart[merge] > bodyEnd) {
+                    elseEnd = blockStart[merge];
+                }
+            } else { // at least one branch doesn't come back (i.e. it returns)
+                Command last = code.get(bodyEnd - 1).command();
+                int jump = code.getLabelPos(bodyEnd - 1);
+                if (last == Command.GOTO && jump > bodyEnd) {
+                    elseEnd = jump;
+                }
+            }
+        }
+        return new Branch(false, inverted, bodyStart, bodyEnd, elseEnd);
+    }
+
+    /**
+     * Checks if a block consists of a single goto command jumping forward.
+     */
+    private boolean isForwardGoto(int block) {
+        if (block >= numBlocks || blockStart[block + 1] - blockStart[block] != 1) {
+            return false;
+        }
+        int line = blockStart[block];
+        return code.get(line).command() == Command.GOTO && code.getLabelPos(line) > line;
+    }
+}
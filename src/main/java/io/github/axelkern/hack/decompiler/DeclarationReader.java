@@ -1,95 +1,231 @@
 package io.github.axelkern.hack.decompiler;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
 import java.util.List;
 
 import io.github.axelkern.hack.jackcompiler.Scanner;
 import io.github.axelkern.hack.jackcompiler.TokenType;
-import io.github.axelkern.hack.jackcompiler.Scanner.Token;
 
+/**
+ * Reads the declarations of the OS classes (and any other classes listed in
+ * decompiler.def). An external decompiler.def next to the jar takes precedence
+ * over the internal one.<br>
+ * <br>
+ * Parsing is avoided whenever possible: the build stores a binary snapshot of
+ * the internal declarations in the jar, and the snapshot of an external file
+ * is cached next to it (decompiler.def.snapshot) until the file is changed.
+ * The declarations are loaded once and shared by all engines.
+ */
 class DeclarationReader {
+    private static final String DECLARATIONS = "decompiler.def";
+    private static final String SNAPSHOT = "decompiler.snapshot";
+    private static SymbolTable declarations;
+
     private String className;
     private String functionName;
     private String functionType;
     private SymbolTable symbols;
-    private List<Token> tokens;
-    private int currentToken;
+    private Scanner scanner; // positioned at the next token
     private int statics;
     private int fields;
     private int vars;
     private String name;
     private String type;
 
-    public static void readDeclarations(SymbolTable symbols) {
-        new DeclarationReader(symbols);
+    /**
+     * Compiles a declaration file into a snapshot (used by the build).
+     *
+     * @param args The declaration file and the snapshot file.
+     */
+    public static void main(String[] args) throws IOException {
+        SymbolTable symbols = new SymbolTable();
+        readDeclarations(symbols, Files.readString(Paths.get(args[0])));
+        writeSnapshot(symbols, Paths.get(args[1]));
+    }
+
+    /**
+     * Returns the declarations. They are only loaded by the first call, the
+     * returned table is read-only and may be shared by several threads.
+     */
+    static SymbolTable getDeclarations() {
+        return getDeclarations(null);
     }
 
-    private DeclarationReader(SymbolTable symbols) {
-        String fileName = io.github.axelkern.hack.util.Util.getJarLocation() + File.separator + "decompiler.def";
-        String declarations;
-        if (Files.exists(Paths.get(fileName))) {
-            System.out.print("Parsing external declarations... ");
-            declarations = io.github.axelkern.hack.util.Util.readFileAsString(Paths.get(fileName));
+    /**
+     * Returns the declarations like getDeclarations() and reports where they
+     * are loaded from, if they are loaded by this call.
+     *
+     * @param out Target of the progress message or null.
+     */
+    static synchronized SymbolTable getDeclarations(PrintStream out) {
+        if (declarations == null) {
+            declarations = loadDeclarations(out);
+            report(out, "found " + declarations.size() + " entries.\n");
+        }
+        return declarations;
+    }
+
+    /**
+     * Returns a hash of the declarations that would be loaded, without loading
+     * them.
+     *
+     * @throws IOException If the declarations cannot be read.
+     */
+    static String getFingerprint() throws IOException {
+        MessageDigest digest = DecompilerCache.newDigest();
+        Path file = getExternalFile();
+        if (Files.exists(file)) {
+            digest.update(Files.readAllBytes(file));
         } else {
+            for (String resource : List.of(SNAPSHOT, DECLARATIONS)) {
+                try (InputStream in = DeclarationReader.class.getResourceAsStream(resource)) {
+                    if (in != null) {
+                        digest.update(in.readAllBytes());
+                        break;
+                    }
+                }
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static Path getExternalFile() {
+        return Paths.get(io.github.axelkern.hack.util.Util.getJarLocation() + File.separator + DECLARATIONS);
+    }
+
+    private static SymbolTable loadDeclarations(PrintStream out) {
+        Path file = getExternalFile();
+        if (Files.exists(file)) {
+            Path snapshot = Paths.get(file + ".snapshot");
             try {
-                declarations = new String(getClass().getResourceAsStream("decompiler.def").readAllBytes());
-                System.out.print("Parsing internal declarations... ");
+                if (Files.exists(snapshot)
+                        && Files.getLastModifiedTime(snapshot).compareTo(Files.getLastModifiedTime(file)) >= 0) {
+                    report(out, "Loading cached external declarations... ");
+                    return SymbolTable.readSnapshot(Files.readAllBytes(snapshot));
+                }
             } catch (IOException e) {
-                declarations = null;
+                // parse the file instead
+            }
+            report(out, "Parsing external declarations... ");
+            SymbolTable symbols = new SymbolTable();
+            readDeclarations(symbols, io.github.axelkern.hack.util.Util.readFileAsString(file));
+            try {
+                writeSnapshot(symbols, snapshot);
+            } catch (IOException e) {
+                // no cache if the directory isn't writable
+            }
+            return symbols;
+        }
+        try (InputStream in = DeclarationReader.class.getResourceAsStream(SNAPSHOT)) {
+            if (in != null) {
+                report(out, "Loading internal declarations... ");
+                return SymbolTable.readSnapshot(in.readAllBytes());
             }
+        } catch (IOException e) {
+            // parse the declarations instead
         }
-        if (declarations != null) {
-            this.symbols = symbols;
-            Scanner scanner = new Scanner(declarations);
-            tokens = scanner.scanTokens();
-            currentToken = 0;
-            parseTokens();
-            System.out.println("found " + symbols.size() + " entries.");
+        SymbolTable symbols = new SymbolTable();
+        try (InputStream in = DeclarationReader.class.getResourceAsStream(DECLARATIONS)) {
+            if (in != null) {
+                report(out, "Parsing internal declarations... ");
+                readDeclarations(symbols, new String(in.readAllBytes()));
+            }
+        } catch (IOException e) {
+            // no declarations
         }
+        return symbols;
     }
 
-    private Token peek() {
-        return tokens.get(currentToken);
+    private static void report(PrintStream out, String message) {
+        if (out != null) {
+            out.print(message);
+        }
     }
 
-    private Token getLast() {
-        return tokens.get(currentToken - 1);
+    static void readDeclarations(SymbolTable symbols, String declarations) {
+        new DeclarationReader(symbols, declarations);
     }
 
-    private Token consume() {
-        if (currentToken < tokens.size()) {
-            currentToken++;
-            return tokens.get(currentToken - 1);
-        } else {
-            return null;
+    private static void writeSnapshot(SymbolTable symbols, Path file) throws IOException {
+        // written to a temporary file first, so that no other run reads an incomplete snapshot
+        Path tempFile = file.resolveSibling(file.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                symbols.writeSnapshot(out);
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private DeclarationReader(SymbolTable symbols, String declarations) {
+        this.symbols = symbols;
+        scanner = new Scanner(declarations);
+        scanner.nextToken();
+        parseTokens();
+    }
+
+    private TokenType peek() {
+        return scanner.type();
+    }
+
+    /**
+     * Skips the next token.
+     *
+     * @return Returns the type of the skipped token.
+     */
+    private TokenType consume() {
+        TokenType token = scanner.type();
+        scanner.nextToken();
+        return token;
+    }
+
+    /**
+     * Skips the next token if it is of the specified type.
+     */
+    private boolean match(TokenType expected) {
+        if (peek() != expected) {
+            return false;
         }
+        consume();
+        return true;
     }
 
     private boolean parseType() {
-        Token token = consume();
-        if (token.type() == TokenType.IDENTIFIER) {
-            type = token.lexeme();
-            return true;
-        } else if (token.type() == TokenType.BOOLEAN || token.type() == TokenType.CHAR || token.type() == TokenType.INT
-                || token.type() == TokenType.VOID) {
-            type = token.type().name().toLowerCase();
-            return true;
+        TokenType token = peek();
+        boolean isType = true;
+        if (token == TokenType.IDENTIFIER) {
+            type = scanner.lexeme();
+        } else if (token == TokenType.BOOLEAN || token == TokenType.CHAR || token == TokenType.INT
+                || token == TokenType.VOID) {
+            type = token.lexeme;
         } else {
-            return false;
+            isType = false;
         }
+        consume();
+        return isType;
     }
 
     private boolean parseIdentifier() {
-        Token token = consume();
-        if (token.type() == TokenType.IDENTIFIER) {
-            name = token.lexeme();
-            return true;
-        } else {
-            return false;
+        boolean isIdentifier = peek() == TokenType.IDENTIFIER;
+        if (isIdentifier) {
+            name = scanner.lexeme();
         }
+        consume();
+        return isIdentifier;
     }
 
     private boolean parseTypedName() {
@@ -100,9 +236,8 @@ class DeclarationReader {
     }
 
     void parseTokens() {
-        while (currentToken < tokens.size()) {
-            Token token = consume();
-            switch (token.type()) {
+        while (peek() != TokenType.EOF) {
+            switch (peek()) {
             case CLASS:
                 parseClass();
                 break;
@@ -116,16 +251,19 @@ class DeclarationReader {
                 parseSubroutineDec();
                 break;
             case VAR:
+                consume();
                 parseVarDec();
                 break;
             default:
+                consume();
                 break;
             }
         }
     }
 
     void parseClass() {
-        String doc = getLast().doc();
+        String doc = scanner.doc();
+        consume(); // class
         if (parseIdentifier()) {
             statics = 0;
             fields = 0;
@@ -137,8 +275,8 @@ class DeclarationReader {
     }
 
     void parseClassVarDec() {
-        TokenType kind = getLast().type();
-        String doc = getLast().doc();
+        String doc = scanner.doc();
+        TokenType kind = consume();
         if (!parseType()) {
             return;
         }
@@ -161,13 +299,12 @@ class DeclarationReader {
                 }
                 fields++;
             }
-        } while (consume().type() == TokenType.COMMA);
-        currentToken--; // reverse the last consumption in case there are no separation tokens
+        } while (match(TokenType.COMMA));
     }
 
     void parseSubroutineDec() {
-        functionType = getLast().type().name();
-        String doc = getLast().doc();
+        String doc = scanner.doc();
+        functionType = consume().name();
         if (!parseTypedName()) {
             return;
         }
@@ -178,8 +315,7 @@ class DeclarationReader {
         if (doc != null) {
             symbols.add(className, className + "." + functionName + "$DOC", doc);
         }
-        if (peek().type() == TokenType.LEFT_PAREN) {
-            consume();
+        if (match(TokenType.LEFT_PAREN)) {
             parseParameterList();
         }
         // ignore following tokens
@@ -190,14 +326,13 @@ class DeclarationReader {
         if (functionType.equals("METHOD")) {
             i = 1;
         }
-        if (peek().type() != TokenType.RIGHT_PAREN) { // parameter list
+        if (peek() != TokenType.RIGHT_PAREN) { // parameter list
             if (!parseTypedName()) {
                 return;
             }
             symbols.add(className + "." + functionName, "arg" + i, type);
             symbols.add(className + "." + functionName, "arg" + i + "$NAME", name);
-            while (peek().type() == TokenType.COMMA) {
-                consume(); // ,
+            while (match(TokenType.COMMA)) {
                 i++;
                 if (!parseTypedName()) {
                     return;
@@ -220,7 +355,6 @@ class DeclarationReader {
             symbols.add(className + "." + functionName, "local" + vars, type);
             symbols.add(className + "." + functionName, "local" + vars + "$NAME", name);
             vars++;
-        } while (consume().type() == TokenType.COMMA);
-        currentToken--; // reverse the last consumption in case there are no separation tokens
+        } while (match(TokenType.COMMA));
     }
 }
@@ -1,18 +1,35 @@
 package io.github.axelkern.hack.decompiler;
 
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.regex.Pattern;
 
+import io.github.axelkern.hack.util.Util;
+
 /**
  * Decompiles VM files compiled with the official nand2tetris Jack compiler. VM
  * files generated by other compilers might work as well. Unsupported features
  * include register allocation, boolean shortcut evaluation, loop/jump
- * shortcuts.
+ * shortcuts.<br>
+ * <br>
+ * An engine holds the state of a single decompilation and must only be used by
+ * one thread at a time. Engines share nothing but the read-only declarations
+ * and the table of the engine they have been forked from. For a thread-safe
+ * entry point see ProgramDecompiler.
  */
 class DecompilationEngine {
 
@@ -24,32 +41,133 @@ class DecompilationEngine {
         UNKNOWN, INDEX_LEFT, INDEX_RIGHT
     }
 
-    private record Expression(String code, String type, Expression left, String op, Expression right) {
-        Expression(String type, Expression left, String op, Expression right) {
-            this("[]".equals(op) ? left.code + "[" + right.code + "]" // array
-                    : "=".equals(op) ? left.code + " = " + right.code // assignment
-                            : (left != null) // binary or unary?
-                                    ? parenthesize(left.code) + OPERATORS.get(op) + parenthesize(right.code) // binary
-                                    : OPERATORS.get(op) + parenthesize(right.code), // unary
-                    type, left, op, right);
+    /**
+     * Node of an expression tree. Leaves (variables and constants) carry their Jack
+     * code, all other nodes are rendered on demand by toString(). Jack doesn't
+     * define any operator precedence, therefore each operand that isn't a term
+     * (variable, constant, array access or call) is put in parentheses.
+     * 
+     * @param code    Jack code of a leaf or null for all other nodes.
+     * @param type    The data type (see JackType) or JackType.UNKNOWN.
+     * @param left    Left operand, the array or the object of a method call.
+     * @param op      The operator (VM command or Math.multiply/divide), "[]" for
+     *                arrays, "=" for assignments, "()" for expressions in
+     *                parentheses or the function name of a call.
+     * @param right   Right (or only) operand or the array index.
+     * @param args    Arguments of a call or null if the node isn't a call.
+     * @param segment The segment of a variable leaf or null for all other nodes,
+     *                so that its type is looked up by slot.
+     * @param slot    The slot of a variable leaf in its segment.
+     */
+    private record Expression(String code, int type, Expression left, String op, Expression right,
+            List<Expression> args, Segment segment, int slot) {
+        Expression(String code, int type, Expression left, String op, Expression right) {
+            this(code, type, left, op, right, null, null, 0);
+        }
+
+        Expression(int type, Expression left, String op, Expression right) {
+            this(null, type, left, op, right, null, null, 0);
+        }
+
+        static Expression call(int type, Expression object, String function, List<Expression> args) {
+            return new Expression(null, type, object, function, null, args, null, 0);
+        }
+
+        static Expression variable(String name, int type, Segment segment, int slot) {
+            return new Expression(name, type, null, null, null, null, segment, slot);
+        }
+
+        void render(StringBuilder out) {
+            if (code != null) { // leaf
+                out.append(code);
+            } else if (args != null) { // call
+                if (left != null) {
+                    left.render(out);
+                    out.append('.');
+                }
+                out.append(op).append('(');
+                for (int i = 0; i < args.size(); i++) {
+                    if (i > 0) {
+                        out.append(", ");
+                    }
+                    args.get(i).render(out);
+                }
+                out.append(')');
+            } else if ("[]".equals(op)) { // array
+                left.render(out);
+                out.append('[');
+                right.render(out);
+                out.append(']');
+            } else if ("=".equals(op)) { // assignment
+                left.render(out);
+                out.append(" = ");
+                right.render(out);
+            } else if ("()".equals(op)) {
+                out.append('(');
+                right.render(out);
+                out.append(')');
+            } else { // binary or unary
+                if (left != null) {
+                    left.renderOperand(out);
+                }
+                out.append(OPERATORS.get(op));
+                right.renderOperand(out);
+            }
+        }
+
+        private void renderOperand(StringBuilder out) {
+            if (isTerm()) {
+                render(out);
+            } else {
+                out.append('(');
+                render(out);
+                out.append(')');
+            }
+        }
+
+        /**
+         * Checks if the expression can be used as an operand without parentheses.
+         */
+        private boolean isTerm() {
+            if (code != null) {
+                return isPlain();
+            } else if (args != null) { // the object of a method call must be plain too
+                return left == null || left.isPlain();
+            } else if ("[]".equals(op)) {
+                return left.isPlain();
+            } else {
+                return "()".equals(op);
+            }
+        }
+
+        /**
+         * Checks if the expression is a leaf only consisting of identifier characters
+         * or dots.
+         */
+        private boolean isPlain() {
+            if (code == null) {
+                return false;
+            }
+            for (int i = 0; i < code.length(); i++) {
+                char c = code.charAt(i);
+                if (!Character.isLetterOrDigit(c) && c != '_' && c != '.') {
+                    return false;
+                }
+            }
+            return true;
         }
 
         @Override
         public String toString() {
-            return code;
+            if (code != null) {
+                return code;
+            }
+            StringBuilder out = new StringBuilder();
+            render(out);
+            return out.toString();
         }
     }
 
-    /**
-     * Hierarchy of types with higher priority coming first (having the lowest
-     * index). Only types with higher priority can override the type currently
-     * stored in the symbol table. Unknown Class types will result in an index of
-     * -1, thus having the highest priority.
-     */
-    private static final List<String> TYPE_HIERARCHY = List.of("String", "Array", "char", "$forced$int", "boolean",
-            "int", "void");
-    private static final Pattern LITERAL_START = Pattern.compile("String\\.new\\([0-9]+\\)\\.appendChar\\(");
-    private static final Pattern NON_IDENT_CHARS = Pattern.compile("[^a-zA-Z0-9_\\.]"); // includes . for calls
     private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z_0-9]*");
     private static final List<String> REGS = List.of("temp0", "temp1", "temp2", "temp3", "temp4", "temp5", "temp6",
             "temp7", "pointer1");
@@ -68,38 +186,97 @@ class DecompilationEngine {
             Map.entry("Math.multiply", " * "),
             Map.entry("Math.divide", " / "),
             Map.entry(",", ", ")); // for calls, currently not in use
-    private static final Map<String, String> SEGMENT_TO_VARKIND = Map.of(
-            "static", "static",
-            "this", "field",
-            "local", "local",
-            "argument", "arg",
-            "constant", "",
-            "temp", "temp",
-            "pointer", "pointer");
     /* @formatter:on */
 
     private String className;
     private String functionName;
-    private List<String> vmCode;
+    private VmCode vmCode;
     private int linePtr;
     private int functionPtr;
+    private int functionEnd;
     private int nextLoopPtr;
     private Deque<Expression> stack;
     private Expression[] regs = new Expression[REGS.size()];
-    private List<String> currentFunction;
-    private List<String> jackCode;
+    private JackWriter writer;
     private SymbolTable symbols;
     private ArrayOrder arrayOrder;
+    private String arrayOrderClass; // class from which arrayOrder has been derived in the first pass
+    private final DecompilerOptions options;
+    private final PrintStream err; // target of the error messages
+    private final JackType types; // class types of the program, shared with the forks
+    private ControlFlowGraph cfg; // control flow graph of the current function (CFG structuring only)
     private boolean nonVoidReturn;
-    private int indentLevel;
 
-    public DecompilationEngine() {
-        symbols = new SymbolTable();
-        DeclarationReader.readDeclarations(symbols);
+    public DecompilationEngine(DecompilerOptions options) {
+        this(options, System.err);
+    }
+
+    /**
+     * Creates an engine reporting errors in the VM code to the specified stream
+     * (i.e. the error output of a daemon request).
+     */
+    DecompilationEngine(DecompilerOptions options, PrintStream err) {
+        this(new SymbolTable(DeclarationReader.getDeclarations()), options, err, new JackType());
+    }
+
+    private DecompilationEngine(SymbolTable symbols, DecompilerOptions options, PrintStream err, JackType types) {
+        this.symbols = symbols;
+        this.options = options;
+        this.err = err;
+        this.types = types;
         stack = new ArrayDeque<>();
         arrayOrder = ArrayOrder.UNKNOWN;
     }
 
+    /**
+     * Creates a new engine that reads everything this engine has learned so far,
+     * but keeps its own type updates to itself. Any number of forked engines can
+     * decompile concurrently, as long as this engine is no longer used to analyze
+     * or decompile while they are running.
+     * 
+     * @return Returns the forked engine.
+     */
+    DecompilationEngine fork() {
+        return fork(options.structuring());
+    }
+
+    /**
+     * Forks this engine (see fork()) using another structuring engine.
+     *
+     * @param structuring The engine for recovering if and while statements.
+     * @return Returns the forked engine.
+     */
+    DecompilationEngine fork(Structuring structuring) {
+        DecompilationEngine engine = new DecompilationEngine(new SymbolTable(symbols),
+                options.withStructuring(structuring), err, types);
+        engine.arrayOrder = arrayOrder;
+        return engine;
+    }
+
+    /**
+     * Returns a fingerprint of the types learned for each class (including its
+     * functions) while analyzing.
+     */
+    Map<String, Long> getTypeFingerprints() {
+        return symbols.getFingerprints();
+    }
+
+    /**
+     * Returns the detected order of array and index on the stack.
+     */
+    String getArrayOrder() {
+        return arrayOrder.name();
+    }
+
+    /**
+     * Returns the class from which the order of array and index has been
+     * derived in the first pass of the analysis, or null if the order is unknown
+     * or has been derived later.
+     */
+    String getArrayOrderClass() {
+        return arrayOrderClass;
+    }
+
     /**
      * Analyzes the specified VM source code to detect data types. Calling this
      * method once or multiple times before decompiling, improves the quality of the
@@ -109,9 +286,135 @@ class DecompilationEngine {
      * @param source      The VM code.
      */
     public void analyze(String vmClassName, List<String> source) {
+        analyze(vmClassName, VmCode.parse(source));
+    }
+
+    void analyze(String vmClassName, VmCode source) {
         className = vmClassName;
         vmCode = source;
-        decompileClass();
+        writer = new JackWriter(null); // the code is only generated to detect the types
+        decompileClass(null);
+    }
+
+    /**
+     * Analyzes the specified classes until no more types change or the maximum
+     * number of passes has been reached. The first pass analyzes all classes. After
+     * that, a class is only analyzed again if an entry of its own or of a class it
+     * calls has been changed. Since types can only be replaced by types with higher
+     * priority, the analysis always reaches a fixpoint.
+     * 
+     * @param classes The VM code of all classes mapped by class name (in the order
+     *                in which they are to be analyzed).
+     * @return Returns the number of passes that were run.
+     */
+    int analyze(Map<String, VmCode> classes) {
+        return analyze(classes, classes.keySet(), null);
+    }
+
+    /**
+     * Analyzes the specified classes like analyze(Map), but analyzes the classes
+     * of a pass concurrently once the order of array and index is known. Until
+     * then, the classes are analyzed one after another, since the classes
+     * analyzed before the order has been detected depend on their order. The
+     * concurrent classes share the symbol table, whose type updates are atomic
+     * joins moving types up the type hierarchy. A class is analyzed again in the
+     * next pass if an entry it depends on has been changed during a pass. Since
+     * types only move up, the passes end at the same fixpoint as analyzing the
+     * classes one after another, except for a variable that is assigned two
+     * different class types, which keeps the type assigned first. If the number
+     * of passes is limited, the classes are always analyzed one after another,
+     * since the result would depend on the scheduling otherwise.
+     *
+     * @param classes The VM code of all classes mapped by class name (in the order
+     *                in which they are to be analyzed).
+     * @param pool    The pool analyzing the classes or null to analyze them one
+     *                after another.
+     * @return Returns the number of passes that were run.
+     */
+    int analyze(Map<String, VmCode> classes, ForkJoinPool pool) {
+        return analyze(classes, classes.keySet(), pool);
+    }
+
+    /**
+     * Updates the analysis after some classes of the program have been changed,
+     * added or removed. The entries of the specified classes are discarded, since
+     * they might have been derived from code that no longer exists. Then these
+     * classes and all classes calling them are analyzed again like in
+     * analyze(Map).
+     *
+     * @param classes The VM code of all classes of the program after the change.
+     * @param reset   The classes whose entries are to be discarded. This should
+     *                include every class a type can have travelled to from the
+     *                changed classes, i.e. all classes connected to them by calls
+     *                before and after the change.
+     * @return Returns the number of passes that were run.
+     */
+    int reanalyze(Map<String, VmCode> classes, Set<String> reset) {
+        reset.forEach(symbols::remove);
+        return analyze(classes, reset, null);
+    }
+
+    private int analyze(Map<String, VmCode> classes, Set<String> start, ForkJoinPool pool) {
+        int maxPasses = options.maxPasses();
+        if (maxPasses > 0) {
+            pool = null;
+        }
+        Map<String, List<String>> dependents = new HashMap<>();
+        for (Map.Entry<String, VmCode> vmClass : classes.entrySet()) {
+            Set<String> dependencies = vmClass.getValue().getCalledClasses();
+            dependencies.add(vmClass.getKey());
+            for (String dependency : dependencies) {
+                dependents.computeIfAbsent(dependency, k -> new ArrayList<>()).add(vmClass.getKey());
+            }
+        }
+        Set<String> pending = new HashSet<>();
+        for (String startClass : start) {
+            pending.addAll(dependents.getOrDefault(startClass, List.of()));
+        }
+        int passes = 0;
+        symbols.trackChanges(true);
+        while (!pending.isEmpty() && (maxPasses <= 0 || passes < maxPasses)) {
+            passes++;
+            Map<String, VmCode> batch = new LinkedHashMap<>(); // analyzed concurrently at the end of the pass
+            for (Map.Entry<String, VmCode> vmClass : classes.entrySet()) {
+                if (pool != null && arrayOrder != ArrayOrder.UNKNOWN) {
+                    if (pending.remove(vmClass.getKey())) {
+                        batch.put(vmClass.getKey(), vmClass.getValue());
+                    }
+                } else if (pending.remove(vmClass.getKey())) {
+                    boolean unknownOrder = arrayOrder == ArrayOrder.UNKNOWN;
+                    analyze(vmClass.getKey(), vmClass.getValue());
+                    if (unknownOrder && arrayOrder != ArrayOrder.UNKNOWN && passes == 1) {
+                        arrayOrderClass = vmClass.getKey();
+                    }
+                    for (String changedClass : symbols.takeChanges()) {
+                        pending.addAll(dependents.getOrDefault(changedClass, List.of()));
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                analyzeConcurrently(batch, pool);
+                for (String changedClass : symbols.takeChanges()) {
+                    pending.addAll(dependents.getOrDefault(changedClass, List.of()));
+                }
+            }
+        }
+        symbols.trackChanges(false);
+        return passes;
+    }
+
+    /**
+     * Analyzes each class on its own engine sharing the symbol table and the
+     * detected order of array and index with this engine.
+     */
+    private void analyzeConcurrently(Map<String, VmCode> batch, ForkJoinPool pool) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        batch.forEach((vmClassName, source) -> {
+            DecompilationEngine worker = new DecompilationEngine(symbols, options, err, types);
+            worker.arrayOrder = arrayOrder;
+            tasks.add(ForkJoinTask.adapt(() -> worker.analyze(vmClassName, source)));
+        });
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
     }
 
     /**
@@ -124,33 +427,74 @@ class DecompilationEngine {
      * @return Returns the decompiled Jack source code.
      */
     public List<String> decompile(String vmClassName, List<String> source) {
+        StringWriter out = new StringWriter();
+        decompile(vmClassName, VmCode.parse(source), out);
+        return Util.splitStringToList(out.toString());
+    }
+
+    /**
+     * Decompiles the specified VM code and streams the Jack source code to a
+     * writer.
+     * 
+     * @param vmClassName The name of the VM class.
+     * @param source      The VM code.
+     * @param out         The target of the Jack source code.
+     * @throws UncheckedIOException If writing fails.
+     */
+    void decompile(String vmClassName, VmCode source, Writer out) {
+        decompile(vmClassName, source, out, null);
+    }
+
+    /**
+     * Decompiles the specified VM code like decompile(String, VmCode, Writer), but
+     * decompiles the functions of the class concurrently. Each function is
+     * decompiled by a fork of this engine (with its own stack, registers and
+     * writer), which reads the types known after the class header, and the
+     * functions are written in their original order. Thus the result doesn't
+     * depend on the scheduling. It is the same as decompiling the functions one
+     * after another once the analysis has reached its fixpoint, since a function
+     * then learns nothing while decompiling that a later function could use. If
+     * the number of passes is limited, the fixpoint might not have been reached,
+     * so the functions are always decompiled one after another (like analyze()).
+     *
+     * @param vmClassName The name of the VM class.
+     * @param source      The VM code.
+     * @param out         The target of the Jack source code.
+     * @param pool        The pool decompiling the functions or null to decompile
+     *                    them one after another.
+     * @throws UncheckedIOException If writing fails.
+     */
+    void decompile(String vmClassName, VmCode source, Writer out, ForkJoinPool pool) {
         className = vmClassName;
         vmCode = source;
-        return decompileClass();
+        writer = new JackWriter(out);
+        decompileClass(pool);
     }
 
-    private List<String> decompileClass() {
-        jackCode = new ArrayList<>();
+    private void decompileClass(ForkJoinPool pool) {
         linePtr = 0;
-        indentLevel = 0;
         emitDoc(className);
         emit("class " + className + " {");
         emit("");
-        updateType("this", className);
-        int staticVars = detectVars(vmCode, "static");
-        emitVars("static", "static", staticVars);
-        int fieldVars = detectVars(vmCode, "this");
-        emitVars("field", "field", fieldVars);
+        updateType(Segment.POINTER, 0, types.of(className)); // this
+        int staticVars = detectVars(0, vmCode.size(), Segment.STATIC);
+        int fieldVars = detectVars(0, vmCode.size(), Segment.THIS);
+        if (!options.keepVarNames()) {
+            Map<String, String> names = new HashMap<>();
+            collectNames(names, Segment.STATIC, staticVars);
+            collectNames(names, Segment.THIS, fieldVars);
+            writer.setClassNames(names);
+        }
+        emitVars("static", Segment.STATIC, staticVars);
+        emitVars("field", Segment.THIS, fieldVars);
         emit("");
-        decompileFunctions();
-        emit("}");
-        fixLiterals();
-        cleanup();
-        if (!Decompiler.keepVarNames) {
-            renameVars(jackCode, "static", staticVars);
-            renameVars(jackCode, "field", fieldVars);
+        if (pool != null && options.maxPasses() <= 0) {
+            decompileFunctions(pool);
+        } else {
+            decompileFunctions();
         }
-        return jackCode;
+        emit("}");
+        writer.flush();
     }
 
     private void decompileFunctions() {
@@ -159,30 +503,62 @@ class DecompilationEngine {
         }
     }
 
+    /**
+     * Decompiles each function on its own fork (see decompile(String, VmCode,
+     * Writer, ForkJoinPool)) and joins the results in their original order.
+     */
+    private void decompileFunctions(ForkJoinPool pool) {
+        writer.flush(); // the class header
+        List<DecompilationEngine> parts = new ArrayList<>();
+        List<ForkJoinTask<String>> tasks = new ArrayList<>();
+        for (int start = linePtr; start < vmCode.size(); start = vmCode.getFunctionEnd(start)) {
+            DecompilationEngine part = fork();
+            part.className = className;
+            part.vmCode = vmCode;
+            part.linePtr = start;
+            StringWriter out = new StringWriter();
+            part.writer = writer.fork(out);
+            parts.add(part);
+            tasks.add(ForkJoinTask.adapt(() -> {
+                part.decompileFunction();
+                return out.toString();
+            }));
+        }
+        // if called by a worker of the pool, it runs tasks of the pool while waiting
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        for (int i = 0; i < tasks.size(); i++) {
+            writer.join(parts.get(i).writer, tasks.get(i).join());
+        }
+        linePtr = vmCode.size();
+    }
+
     private void decompileFunction() {
         stack.clear();
         nextLoopPtr = -1;
         nonVoidReturn = false; // reset void detection
         functionPtr = linePtr;
-        currentFunction = vmCode.subList(functionPtr, findCommand(vmCode, functionPtr + 1, "function ", false));
-        int jackFunctionStart = jackCode.size(); // remember start of Jack source code start for renaming
+        functionEnd = vmCode.getFunctionEnd(functionPtr);
+        cfg = options.structuring() == Structuring.CFG ? new ControlFlowGraph(vmCode, functionPtr + 1, functionEnd)
+                : null;
+        writer.flush(); // the pending code doesn't belong to this function
         // decompile function header
-        functionName = getSeg();
+        functionName = getTarget();
         int numLocals = getIdx();
         String localFunctionName = functionName.substring(functionName.indexOf('.') + 1);
         linePtr++; // consume function command
         FunctionKind kind = detectFunctionKind(); // consumes function header
-        String returnType = getType("RETURN", "int"); // in case it is a constructor return type was set by detect
+        // in case it is a constructor return type was set by detect
+        String returnType = getDeclaredName(getReturnType(functionName));
         // generate function declaration
         String decl = kind.name().toLowerCase() + " " + returnType + " " + localFunctionName + "(";
-        int numArgs = detectVars(currentFunction, "argument");
+        int numArgs = detectVars(functionPtr, functionEnd, Segment.ARGUMENT);
         int argStart = 0;
         if (kind == FunctionKind.METHOD) {
             argStart = 1; // skip hidden argument in declaration
-            updateType("arg0", className);
+            updateType(Segment.ARGUMENT, 0, types.of(className));
         }
         for (int i = argStart; i < numArgs; i++) {
-            String varType = getType("arg" + i, "int");
+            String varType = getDeclaredName(getType(Segment.ARGUMENT, i));
             if (i > argStart) {
                 decl = decl + ", ";
             }
@@ -192,19 +568,22 @@ class DecompilationEngine {
         emitDoc(functionName);
         emit(decl);
         // generate locals
-        emitVars("var", "local", numLocals);
+        emitVars("var", Segment.LOCAL, numLocals);
         // decompile body
-        decompileStatements("$"); // dummy symbol
+        decompileStatements(-1); // until the end of the function
         emit("}");
         emit("");
         // adjust return type to void if function always returns 0
         if (!nonVoidReturn) {
-            updateType("RETURN", "void");
+            updateReturnType(JackType.VOID);
         }
-        if (!Decompiler.keepVarNames) {
-            List<String> jackFunction = jackCode.subList(jackFunctionStart, jackCode.size());
-            renameVars(jackFunction, "local", numLocals);
-            renameVars(jackFunction, "arg", numArgs);
+        if (!options.keepVarNames()) {
+            Map<String, String> names = new HashMap<>();
+            collectNames(names, Segment.LOCAL, numLocals);
+            collectNames(names, Segment.ARGUMENT, numArgs);
+            writer.flush(names);
+        } else {
+            writer.flush();
         }
     }
 
@@ -217,20 +596,22 @@ class DecompilationEngine {
      */
     private FunctionKind detectFunctionKind() {
         FunctionKind type;
-        if (getLine(linePtr).equals("push argument 0") && getLine(linePtr + 1).equals("pop pointer 0")) {
+        if (vmCode.get(linePtr).is(Command.PUSH, Segment.ARGUMENT, 0)
+                && vmCode.get(linePtr + 1).is(Command.POP, Segment.POINTER, 0)) {
             type = FunctionKind.METHOD;
             linePtr += 2;
-        } else if (getLine(linePtr).startsWith("push constant ") && getLine(linePtr + 1).equals("call Memory.alloc 1")
-                && getLine(linePtr + 2).equals("pop pointer 0")) {
+        } else if (getCmd(linePtr) == Command.PUSH && getSegment(linePtr) == Segment.CONSTANT
+                && getCmd(linePtr + 1) == Command.CALL && "Memory.alloc".equals(getTarget(linePtr + 1))
+                && getIdx(linePtr + 1) == 1 && vmCode.get(linePtr + 2).is(Command.POP, Segment.POINTER, 0)) {
             type = FunctionKind.CONSTRUCTOR;
             linePtr += 3;
             // override manual field detection since constructor is a more reliable source
-            updateType("FIELDS", Integer.toString(getIdx()));
-            updateType("RETURN", className);
+            initEntry(className, SymbolTable.Property.FIELDS, Integer.toString(getIdx()));
+            updateReturnType(types.of(className));
         } else {
             type = FunctionKind.FUNCTION;
         }
-        updateType("TYPE", type.name());
+        initEntry(functionName, SymbolTable.Property.TYPE, type.name());
         return type;
     }
 
@@ -238,21 +619,33 @@ class DecompilationEngine {
      * Detects the number of variables in the specified segment (static, this,
      * local, argument).
      * 
-     * @param code       List of VM source code lines (must only contain the current
-     *                   function for local and arguments).
+     * @param from       The first line in vmCode to be searched.
+     * @param to         The line in vmCode where the search ends (exclusive). The
+     *                   range must only contain the current function for local
+     *                   and arguments.
      * @param varSegment Specifies the segment (static, this, local, argument).
      * @return Returns the number of variables in the specified segment that were
      *         found.
      */
-    private int detectVars(List<String> code, String varSegment) {
-        String key = SEGMENT_TO_VARKIND.get(varSegment).toUpperCase() + "S";
-        String value = getType(key);
+    private int detectVars(int from, int to, Segment varSegment) {
+        SymbolTable.Property property = switch (varSegment) {
+        case STATIC -> SymbolTable.Property.STATICS;
+        case THIS -> SymbolTable.Property.FIELDS;
+        case LOCAL -> SymbolTable.Property.LOCALS;
+        default -> SymbolTable.Property.ARGS;
+        };
+        String owner = varSegment == Segment.STATIC || varSegment == Segment.THIS ? className : functionName;
+        String value = symbols.get(owner, property);
         if (value != null) {
             return Integer.parseInt(value);
         }
-        int numVars = code.stream().filter(s -> s.contains(" " + varSegment + " "))
-                .map(s -> s.substring(s.lastIndexOf(' ') + 1)).mapToInt(n -> Integer.parseInt(n)).max().orElse(-1) + 1;
-        updateType(key, Integer.toString(numVars));
+        int numVars = 0;
+        for (int line = from; line < to; line++) {
+            if (getSegment(line) == varSegment) {
+                numVars = Math.max(numVars, getIdx(line) + 1);
+            }
+        }
+        initEntry(owner, property, Integer.toString(numVars));
         return numVars;
     }
 
@@ -263,56 +656,57 @@ class DecompilationEngine {
      * This is necessary if multiple nested blocks are using the same blockEnd
      * label.
      * 
-     * @param blockEnd The VM label command that marks the end of the current block.
+     * @param blockEnd The position of the VM label that marks the end of the
+     *                 current block or -1 if the block ends with the function.
      */
-    private void decompileStatements(String blockEnd) {
-        while (linePtr < vmCode.size() && !getLine(linePtr).startsWith("function ")
-                && !getLine(linePtr).equals(blockEnd)) {
+    private void decompileStatements(int blockEnd) {
+        while (linePtr < functionEnd && linePtr != blockEnd) {
             decompileStatement();
         }
     }
 
     private void decompileStatement() {
         do {
-            String cmd = getCmd();
+            Command cmd = getCmd();
             switch (cmd) {
-            case "label":
-                if (nextLoopPtr < 0) { // not yet in a while loop (inside the current block)?
+            case LABEL:
+                if (cfg == null && nextLoopPtr < 0) { // not yet in a while loop (inside the current block)?
                     nextLoopPtr = detectLoop(); // check if this is the beginning of a while loop
                 }
                 linePtr++; // just ignore non-loop labels
                 break;
-            case "add":
-            case "sub":
-            case "and":
-            case "or":
-            case "eq":
-            case "lt":
-            case "gt":
-            case "neg":
-            case "not":
-                decompileArithmetics(cmd);
+            case ADD:
+            case SUB:
+            case AND:
+            case OR:
+            case EQ:
+            case LT:
+            case GT:
+            case NEG:
+            case NOT:
+                decompileArithmetics(cmd.mnemonic);
                 break;
-            case "push":
+            case PUSH:
                 decompileVar();
                 break;
-            case "pop":
+            case POP:
                 decompileDoLet();
                 break;
-            case "if-goto":
+            case IF_GOTO:
                 decompileIfWhile(); // boolean shortcuts can be captured here when stack level>1
                 break;
-            case "goto":
+            case GOTO:
                 linePtr++; // just ignore (block detection is based on labels)
                 break;
-            case "return":
+            case RETURN:
                 decompileReturn();
                 break;
-            case "call":
+            case CALL:
                 decompileCall();
                 break;
             default:
-                System.err.println("Error: unexpected command in statement: " + cmd);
+                err.println("Error: unexpected command in statement: " + vmCode.get(linePtr));
+                linePtr++; // skip it
             }
         } while (!stack.isEmpty());
         return;
@@ -329,33 +723,38 @@ class DecompilationEngine {
         // the current label. If there is such statement, we have a loop. Since flow
         // optimizations might lead to multiple goto's to the same label, we search for
         // the last such goto statement.
-        String searchPattern = "goto " + getSeg();
-        int line = linePtr - functionPtr;
-        int result;
-        do {
-            result = line;
-            line = findCommand(currentFunction, line + 1, searchPattern, true);
-        } while (line < currentFunction.size());
-        result = result + functionPtr;
-        if (result == linePtr) {
+        int result = vmCode.getLastGoto(linePtr);
+        if (result <= linePtr) {
             return -1;
         } else {
             return result;
         }
     }
 
-    private void decompileIfWhile() {
+    /**
+     * Detects the structure of the if-goto at linePtr by matching the surrounding
+     * label and goto commands. The else-body can only be detected after the body
+     * has been decompiled and is therefore not part of the result.
+     */
+    private ControlFlowGraph.Branch detectBranch() {
         int loopPtr = nextLoopPtr;
-        nextLoopPtr = -1; // reset for embedded while/if
-        String blockEndId;
         // check for inverted jump condition
-        if (getCmd(linePtr + 1).equals("goto") && (loopPtr == -1 || (loopPtr - linePtr != 1))) {
+        if (getCmd(linePtr + 1) == Command.GOTO && (loopPtr == -1 || (loopPtr - linePtr != 1))) {
             // The condition is not inverted when if-goto followed directly by a goto,
-            // unless the goto belongs to an empty loop
-            blockEndId = "label " + getSeg(linePtr + 1); // doesn't support loop shortcut
-            linePtr += 3;
+            // unless the goto belongs to an empty loop (doesn't support loop shortcut)
+            return new ControlFlowGraph.Branch(loopPtr != -1, false, linePtr + 3, vmCode.getLabelPos(linePtr + 1),
+                    -1);
+        } else { // condition needs to be inverted
+            return new ControlFlowGraph.Branch(loopPtr != -1, true, linePtr + 1, vmCode.getLabelPos(linePtr), -1);
+        }
+    }
+
+    private void decompileIfWhile() {
+        ControlFlowGraph.Branch branch = cfg != null ? cfg.getBranch(linePtr) : detectBranch();
+        nextLoopPtr = -1; // reset for embedded while/if
+        if (!branch.inverted()) {
+            linePtr = branch.bodyStart();
         } else { // condition needs to be inverted
-            blockEndId = "label " + getSeg();
             if ("not".equals(stack.peek().op)) { // check if the expression is inverted too
                 stack.push(stack.pop().right); // invert by skipping the preceding not
                 linePtr++; // consume the IF-GOTO
@@ -364,30 +763,30 @@ class DecompilationEngine {
                 // IF-GOTO already "consumed" by arithmeticExpression (linePtr increased)
             }
         }
-        emit((loopPtr == -1 ? "if" : "while") + " (" + stack.pop() + ") {");
-        decompileStatements(blockEndId); // body
+        emit((branch.loop() ? "while" : "if") + " (" + stack.pop() + ") {");
+        decompileStatements(branch.bodyEnd()); // body
         // check for else block
-        if (loopPtr == -1 && getCmd(linePtr - 1).equals("goto")) {
+        if (cfg != null ? branch.elseEnd() >= 0 : !branch.loop() && getCmd(linePtr - 1) == Command.GOTO) {
             emit("} else {");
-            blockEndId = "label " + getSeg(linePtr - 1);
+            int elseEnd = cfg != null ? branch.elseEnd() : vmCode.getLabelPos(linePtr - 1);
             linePtr++; // consume the label at the end of the if block
-            decompileStatements(blockEndId); // else-body
+            decompileStatements(elseEnd); // else-body
         }
         emit("}");
     }
 
     private void decompileReturn() {
         Expression returnValue = stack.pop();
-        if ("void".equals(getType("RETURN"))) {
+        if (getReturnType(functionName) == JackType.VOID) {
             emit("return;");
         } else {
-            if (!returnValue.code.equals("0")) {
+            if (!"0".equals(returnValue.code)) {
                 nonVoidReturn = true;
             }
-            if ("boolean".equals(getType("RETURN")) && returnValue.code.equals("0")) {
-                returnValue = new Expression("false", "boolean", null, null, null);
+            if (getReturnType(functionName) == JackType.BOOLEAN && "0".equals(returnValue.code)) {
+                returnValue = new Expression("false", JackType.BOOLEAN, null, null, null);
             }
-            updateType("RETURN", returnValue.type);
+            updateReturnType(returnValue.type);
             emit("return " + returnValue + ";");
         }
         linePtr++;
@@ -396,7 +795,7 @@ class DecompilationEngine {
     private void decompileDoLet() {
         String varName = getVar();
         if (stack.size() == 1 && !"pointer1".equals(varName)) { // do or let
-            if (getLine(linePtr).equals("pop temp 0") && getCmd(linePtr - 1).equals("call")) { // do
+            if (vmCode.get(linePtr).is(Command.POP, Segment.TEMP, 0) && getCmd(linePtr - 1) == Command.CALL) { // do
                 // It is just assumed that storing the return value in temp 0 indicates a "do"
                 // call. It could also be checked if the function is void or unknown, but there
                 // is also the possibility that the return value was purposely forfeited. To
@@ -432,9 +831,9 @@ class DecompilationEngine {
     private Expression decompileAssignExpr(String varName) {
         Expression assignment;
         Expression valueExpr = stack.pop();
-        String varType;
+        int varType;
         Expression target;
-        if (getLine(linePtr).startsWith("pop that")) { // array assignment
+        if (getSegment() == Segment.THAT) { // array assignment
             varType = valueExpr.type; // target is of type Array<?>, so the value type is used
             target = regs[REGS.indexOf("pointer1")];
             int index = getIdx();
@@ -444,22 +843,23 @@ class DecompilationEngine {
                 // x=a[x]+a[x+10]). Replacement is only safe if rightExpr is 0. Otherwise it
                 // should be added.
                 target = new Expression(target.type, target.left, target.op,
-                        new Expression(Integer.toString(index), "int", null, null, null));
+                        new Expression(Integer.toString(index), JackType.INT, null, null, null));
             }
         } else { // simple assignment
-            updateType(varName, valueExpr.type);
-            varType = getType(varName);
-            target = new Expression(varName, varType, null, null, null);
-            if ("boolean".equals(varType) && valueExpr.code.equals("0")) {
-                valueExpr = new Expression("false", "boolean", null, null, null);
+            Segment segment = getSegment();
+            int slot = getIdx();
+            updateType(segment, slot, valueExpr.type);
+            varType = getType(segment, slot);
+            target = Expression.variable(varName, varType, segment, slot);
+            if (varType == JackType.BOOLEAN && "0".equals(valueExpr.code)) {
+                valueExpr = new Expression("false", JackType.BOOLEAN, null, null, null);
             }
         }
         // add parenthesis when assigning a comparison or boolean
         // (required by standard compiler)
         if ("eq".equals(valueExpr.op) || "lt".equals(valueExpr.op) || "gt".equals(valueExpr.op)
                 || "false".equals(valueExpr.code) || "true".equals(valueExpr.code)) {
-            valueExpr = new Expression("(" + valueExpr.code + ")", valueExpr.type, valueExpr.left, valueExpr.op,
-                    valueExpr.right);
+            valueExpr = new Expression(valueExpr.type, null, "()", valueExpr);
         }
         assignment = new Expression(varType, target, "=", valueExpr);
         linePtr++;
@@ -473,9 +873,8 @@ class DecompilationEngine {
     private void decompileVar() {
         String varName = getVar();
         Expression varExpr;
-        String seg = getSeg();
-        switch (seg) {
-        case "that":
+        switch (getSegment()) {
+        case THAT:
             varExpr = regs[REGS.indexOf("pointer1")];
             int index = getIdx();
             if (index != 0) { // not required for standard compiler
@@ -484,70 +883,71 @@ class DecompilationEngine {
                 // x=a[x]+a[x+10]). Replacement is only safe if rightExpr is 0. Otherwise it
                 // should be added.
                 varExpr = new Expression(varExpr.type, varExpr.left, varExpr.op,
-                        new Expression(Integer.toString(index), "int", null, null, null));
+                        new Expression(Integer.toString(index), JackType.INT, null, null, null));
             }
             break;
-        case "temp":
+        case TEMP:
             varExpr = regs[REGS.indexOf(varName)];
             break;
         default:
-            String exprType;
             if (isConstant(varName)) {
-                if (varName.equals("0")) {
-                    exprType = null;
-                } else {
-                    exprType = "int";
-                }
+                varExpr = new Expression(varName, varName.equals("0") ? JackType.UNKNOWN : JackType.INT, null, null,
+                        null);
             } else {
-                exprType = getType(varName);
+                Segment segment = getSegment();
+                int slot = getIdx();
+                varExpr = Expression.variable(varName, getType(segment, slot), segment, slot);
             }
-            varExpr = new Expression(varName, exprType, null, null, null);
         }
         linePtr++;
         stack.push(varExpr);
     }
 
     private void decompileCall() {
-        String calledFunction = getSeg();
+        String calledFunction = getTarget();
         if (calledFunction.equals("Math.multiply") || calledFunction.equals("Math.divide")) {
             decompileArithmetics(calledFunction);
+        } else if (calledFunction.equals("String.new") && decodeStringLiteral()) {
+            return;
         } else {
             int numArgs = getIdx();
-            String decl = "";
             int argStart = 0;
-            if (symbols.find(calledFunction, "TYPE").equals("METHOD")) {
+            if ("METHOD".equals(symbols.get(calledFunction, SymbolTable.Property.TYPE))) {
                 argStart = 1;
             }
+            Expression[] args = new Expression[Math.max(0, numArgs - argStart)];
             for (int i = numArgs - 1; i >= argStart; i--) {
                 Expression arg = stack.pop();
-                if ("boolean".equals(symbols.get(calledFunction, "arg" + i)) && arg.code.equals("0")) {
-                    arg = new Expression("false", "boolean", null, null, null);
+                int argType = types.of(
+                        symbols.get(className, calledFunction, Segment.ARGUMENT, i, SymbolTable.Attribute.TYPE));
+                if (argType == JackType.BOOLEAN && "0".equals(arg.code)) {
+                    arg = new Expression("false", JackType.BOOLEAN, null, null, null);
                 }
-                if (i < numArgs - 1) {
-                    decl = ", " + decl;
-                }
-                decl = arg + decl;
-                updateType(arg, symbols.get(calledFunction, "arg" + i));
-                if (arg.type != null) { // reverse type update towards called function
-                    int typeLevel = TYPE_HIERARCHY.indexOf(arg.type);
-                    if (typeLevel >= TYPE_HIERARCHY.indexOf("Array") // avoid overriding casted args with class types
-                            && typeLevel < TYPE_HIERARCHY.indexOf("int")) { // no need to update int (default)
-                        symbols.add(calledFunction, "arg" + i, arg.type);
+                args[i - argStart] = arg;
+                updateType(arg, argType);
+                if (arg.type != JackType.UNKNOWN) { // reverse type update towards called function
+                    int typeLevel = JackType.rank(arg.type);
+                    if (typeLevel >= JackType.rank(JackType.ARRAY) // avoid overriding casted args with class types
+                            && typeLevel < JackType.rank(JackType.INT) // no need to update int (default)
+                            && JackType.overrides(arg.type, argType)) {
+                        // checked again atomically, since another thread might update it at the same time
+                        symbols.join(className, calledFunction, Segment.ARGUMENT, i, SymbolTable.Attribute.TYPE,
+                                types.name(arg.type), DecompilationEngine::joinType);
                     }
                 }
             }
-            String exprType = symbols.get(calledFunction, "RETURN");
+            int exprType = getReturnType(calledFunction);
+            Expression object = null;
             if (argStart == 1) { // method
                 Expression calledObject = stack.pop();
                 String calledClass = calledFunction.substring(0, calledFunction.indexOf('.'));
                 calledFunction = calledFunction.substring(calledFunction.indexOf('.') + 1);
-                if (!calledObject.code.equals("this")) { // method in other class
-                    calledFunction = calledObject + "." + calledFunction;
-                    updateType(calledObject, calledClass);
+                if (!"this".equals(calledObject.code)) { // method in other class
+                    object = calledObject;
+                    updateType(calledObject, types.of(calledClass));
                 }
             }
-            // just push the call, omitting the argument expression trees (no use for it)
-            stack.push(new Expression(calledFunction + "(" + decl + ")", exprType, null, null, null));
+            stack.push(Expression.call(exprType, object, calledFunction, Arrays.asList(args)));
             linePtr++;
         }
     }
@@ -556,71 +956,107 @@ class DecompilationEngine {
         Expression rightExpr = stack.pop();
         switch (op) {
         case "neg":
-            stack.push(new Expression("int", null, op, rightExpr));
+            stack.push(new Expression(JackType.INT, null, op, rightExpr));
             break;
         case "not":
-            if (rightExpr.code.equals("0")) {
-                stack.push(new Expression("true", "boolean", null, "not", rightExpr));
+            if ("0".equals(rightExpr.code)) {
+                stack.push(new Expression("true", JackType.BOOLEAN, null, "not", rightExpr));
             } else {
                 stack.push(new Expression(rightExpr.type, null, op, rightExpr));
             }
             break;
         default: // binary
             Expression leftExpr = stack.pop();
-            String exprType = resolveType(leftExpr, op, rightExpr);
+            int exprType = resolveType(leftExpr, op, rightExpr);
             stack.push(new Expression(exprType, leftExpr, op, rightExpr));
             break;
         }
         linePtr++;
     }
 
+    /**
+     * Decodes a string constant, which the compiler translates into a call of
+     * String.new(length) followed by one String.appendChar(c) call per character.
+     * The whole chain is consumed at once and pushed as a literal.
+     * 
+     * @return Returns false if the code at the current line doesn't match the
+     *         pattern, nothing has been consumed in that case.
+     */
+    private boolean decodeStringLiteral() {
+        Expression length = stack.peek();
+        if (length == null || length.code == null || !Character.isDigit(length.code.charAt(0))) {
+            return false;
+        }
+        int strLength = Integer.parseInt(length.code);
+        int line = linePtr + 1;
+        if (strLength == 0 || line + 2 * strLength > functionEnd) {
+            return false;
+        }
+        StringBuilder literal = new StringBuilder(strLength + 2).append('"');
+        for (int i = 0; i < strLength; i++, line += 2) {
+            VmCode.Instruction push = vmCode.get(line);
+            VmCode.Instruction call = vmCode.get(line + 1);
+            if (push.command() != Command.PUSH || push.segment() != Segment.CONSTANT
+                    || call.command() != Command.CALL || !"String.appendChar".equals(call.target())) {
+                return false;
+            }
+            literal.append((char) push.index());
+        }
+        literal.append('"');
+        stack.pop();
+        stack.push(new Expression(literal.toString(), JackType.STRING, null, null, null));
+        linePtr = line;
+        return true;
+    }
+
     /**
      * Attempts to derive the data type of a binary expression.
      * 
      * @param left  Left expression.
      * @param op    Binary operator.
      * @param right Right expression.
-     * @return Returns the data type or null if the type cannot be derived.
+     * @return Returns the data type or JackType.UNKNOWN if the type cannot be
+     *         derived.
      */
-    private String resolveType(Expression left, String op, Expression right) {
+    private int resolveType(Expression left, String op, Expression right) {
         switch (op) {
         case "add":
         case "sub":
         case "Math.multiply":
         case "Math.divide":
-            updateType(left, "int");
-            updateType(right, "int");
-            return "int";
+            updateType(left, JackType.INT);
+            updateType(right, JackType.INT);
+            return JackType.INT;
         case "and": // this can be logical or bitwise
         case "or": // therefore conservative update of type
-            if (left.type != null && left.type.equals(right.type)) {
+            if (left.type == right.type) {
                 return left.type;
             }
-            if (op.equals("and") && ("boolean".equals(left.type) || "boolean".equals(right.type))) {
-                return "boolean";
+            if (op.equals("and") && (left.type == JackType.BOOLEAN || right.type == JackType.BOOLEAN)) {
+                return JackType.BOOLEAN;
             }
-            return null;
+            return JackType.UNKNOWN;
         case "lt":
         case "gt":
-            updateType(left, "$forced$int"); // force int for operand
-            updateType(right, "$forced$int"); // force int for operand
-            return "boolean";
+            updateType(left, JackType.FORCED_INT); // force int for operand
+            updateType(right, JackType.FORCED_INT); // force int for operand
+            return JackType.BOOLEAN;
         case "eq": // one side with type int should imply that both are int
-            if (Decompiler.forceChar) {
-                if ("char".equals(left.type)) {
-                    updateType(right, "char");
-                } else if ("char".equals(right.type)) {
-                    updateType(left, "char");
+            if (options.forceChar()) {
+                if (left.type == JackType.CHAR) {
+                    updateType(right, JackType.CHAR);
+                } else if (right.type == JackType.CHAR) {
+                    updateType(left, JackType.CHAR);
                 }
             }
-            if ("int".equals(left.type)) {
-                updateType(right, "int");
-            } else if ("int".equals(right.type)) {
-                updateType(left, "int");
+            if (left.type == JackType.INT) {
+                updateType(right, JackType.INT);
+            } else if (right.type == JackType.INT) {
+                updateType(left, JackType.INT);
             }
-            return "boolean";
+            return JackType.BOOLEAN;
         default:
-            return null; // will never be reached
+            return JackType.UNKNOWN; // will never be reached
         }
     }
 
@@ -634,198 +1070,139 @@ class DecompilationEngine {
         Expression array = stack.pop();
         if ("add".equals(array.op)) {
             if (arrayOrder == ArrayOrder.UNKNOWN) { // try to derive stack order of array
-                if (isConstant(array.left.code) || !IDENTIFIER.matcher(array.left.code).matches()
-                        || (!"Array".equals(getType(array.left.code)) && "Array".equals(getType(array.right.code)))) {
+                if (!isVariable(array.left)
+                        || (getType(array.left) != JackType.ARRAY && getType(array.right) == JackType.ARRAY)) {
                     arrayOrder = ArrayOrder.INDEX_LEFT;
                 }
-                if (isConstant(array.right.code) || !IDENTIFIER.matcher(array.right.code).matches()
-                        || (!"Array".equals(getType(array.right.code)) && "Array".equals(getType(array.left.code)))) {
+                if (!isVariable(array.right)
+                        || (getType(array.right) != JackType.ARRAY && getType(array.left) == JackType.ARRAY)) {
                     arrayOrder = ArrayOrder.INDEX_RIGHT;
                 }
             }
             if (arrayOrder == ArrayOrder.INDEX_RIGHT) {
-                array = new Expression(null, array.left, "[]", array.right);
+                array = new Expression(JackType.UNKNOWN, array.left, "[]", array.right);
             } else { // also default for UNKNOWN
-                array = new Expression(null, array.right, "[]", array.left);
+                array = new Expression(JackType.UNKNOWN, array.right, "[]", array.left);
             }
-            updateType(array.right, "int");
+            updateType(array.right, JackType.INT);
         } else { // no index, just constant offset (not required for standard compiler)
-            array = new Expression(null, array, "[]", new Expression("0", "int", null, null, null));
+            array = new Expression(JackType.UNKNOWN, array, "[]", new Expression("0", JackType.INT, null, null, null));
         }
-        updateType(array.left, "Array");
+        updateType(array.left, JackType.ARRAY);
         stack.push(array);
     }
 
     /**
-     * Searches for the specified pattern inside the code.
-     * 
-     * @param code    List to search in.
-     * @param startAt The line number in vmCode where the search is starting.
-     * @param pattern The pattern to search for.
-     * @param exact   Specifies if the line has to match exactly the pattern.
-     * @return Returns the line number in vmCode which matches (if exact==true) or
-     *         starts with (if exact==false) the specified pattern or vmCode.size()
-     *         if no such pattern can be found.
-     */
-    private int findCommand(List<String> code, int startAt, String pattern, boolean exact) {
-        int line;
-        for (line = startAt; line < code.size(); line++) {
-            if (code.get(line).startsWith(pattern) && (!exact || code.get(line).length() == pattern.length())) {
-                break;
-            }
-        }
-        return line;
+     * Returns the name of a type as declared in Jack code (int if it is
+     * unknown).
+     */
+    private String getDeclaredName(int type) {
+        return type != JackType.UNKNOWN ? types.declaredName(type) : "int";
     }
 
-    private String getType(String identifier, String defaultType) {
-        String type = getType(identifier);
-        if (type == null) {
-            return defaultType;
-        } else {
-            return type.replaceAll("\\$forced\\$", ""); // remove forced tag
+    private int getType(Segment segment, int slot) {
+        return types.of(symbols.get(className, functionName, segment, slot, SymbolTable.Attribute.TYPE));
+    }
+
+    private void updateType(Segment segment, int slot, int type) {
+        if (type != JackType.UNKNOWN) {
+            if (options.charAsInt() && type == JackType.CHAR) {
+                type = JackType.INT;
+            }
+            if (JackType.overrides(type, getType(segment, slot))) { // checked again atomically by the join
+                symbols.join(className, functionName, segment, slot, SymbolTable.Attribute.TYPE, types.name(type),
+                        DecompilationEngine::joinType);
+            }
         }
     }
 
-    private String getType(String identifier) {
-        return symbols.get(className, functionName, identifier);
+    private int getReturnType(String function) {
+        return types.of(symbols.get(function, SymbolTable.Property.RETURN));
     }
 
-    private void updateType(String identifier, String type) {
-        if (type != null) {
-            if (IDENTIFIER.matcher(identifier).matches()) { // is it an identifier?
-                String currentType = symbols.get(className, functionName, identifier);
-                if (currentType == null || TYPE_HIERARCHY.indexOf(type) < TYPE_HIERARCHY.indexOf(currentType)
-                        || (Decompiler.charAsInt && type.equals("char"))) {
-                    if (Decompiler.charAsInt && type.equals("char")) {
-                        type = "int";
-                    }
-                    symbols.add(className, functionName, identifier, type);
-                }
+    private void updateReturnType(int type) {
+        if (type != JackType.UNKNOWN) {
+            if (options.charAsInt() && type == JackType.CHAR) {
+                type = JackType.INT;
+            }
+            if (JackType.overrides(type, getReturnType(functionName))) { // checked again atomically by the join
+                symbols.join(functionName, SymbolTable.Property.RETURN, types.name(type),
+                        DecompilationEngine::joinType);
             }
         }
     }
 
-    private void updateType(Expression expr, String type) {
-        updateType(expr.code, type);
+    /**
+     * Joins a type into the current type of an entry: the type with higher
+     * priority wins, the current type is kept if both have the same priority
+     * (i.e. two class types).
+     */
+    private static String joinType(String currentType, String type) {
+        return JackType.overrides(type, currentType) ? type : currentType;
     }
 
-    private static boolean isConstant(String s) {
-        return Character.isDigit(s.charAt(0)) || s.equals("true") || s.equals("false") || s.equals("null");
+    /**
+     * Stores an entry that isn't a type (i.e. the number of locals), unless it
+     * has already been set.
+     */
+    private void initEntry(String owner, SymbolTable.Property property, String value) {
+        symbols.join(owner, property, value, (currentValue, newValue) -> currentValue != null ? currentValue
+                : newValue);
     }
 
-    private void emit(String cmd) {
-        if (cmd.contains("}")) {
-            indentLevel--;
-        }
-        if (cmd.length() > 0) {
-            for (int i = 0; i < indentLevel; i++) {
-                cmd = "    " + cmd;
-            }
-        }
-        jackCode.add(cmd);
-//        System.out.println(cmd);
-        if (cmd.contains("{")) {
-            indentLevel++;
-        }
+    /**
+     * Returns the type of a variable or JackType.UNKNOWN if the expression isn't
+     * a variable.
+     */
+    private int getType(Expression expr) {
+        return expr.segment != null ? getType(expr.segment, expr.slot) : JackType.UNKNOWN;
     }
 
-    private void emitVars(String id, String varKind, int numVars) {
-        for (int i = 0; i < numVars; i++) {
-            emitDoc(varKind + i);
-            emit(id + " " + getType(varKind + i, "int") + " " + varKind + i + ";");
+    private void updateType(Expression expr, int type) {
+        if (expr.segment != null) { // only variables have a type entry
+            updateType(expr.segment, expr.slot, type);
         }
     }
 
-    private void emitDoc(String key) {
-        String doc = symbols.get(className, key + "$DOC");
-        if (doc != null) {
-            emit(doc);
-        }
+    private static boolean isVariable(Expression expr) {
+        return expr.code != null && !isConstant(expr.code) && IDENTIFIER.matcher(expr.code).matches();
     }
 
-    private static String parenthesize(String expr) {
-        // search for outer brackets/parenthesis
-        int parenStart = expr.indexOf('(');
-        int bracketStart = expr.indexOf('[');
-        char openChar;
-        char closeChar;
-        int openIndex;
-        if (bracketStart < 0 || (parenStart >= 0 && parenStart <= bracketStart)) {
-            openChar = '(';
-            closeChar = ')';
-            openIndex = parenStart;
-        } else {
-            openChar = '[';
-            closeChar = ']';
-            openIndex = bracketStart;
-        }
-        String outsideBrackets;
-        if (openIndex >= 0) { // found brackets/parenthesis
-            // search for corresponding closing bracket
-            int level = 1;
-            int closeIndex;
-            for (closeIndex = openIndex + 1; closeIndex < expr.length(); closeIndex++) {
-                if (expr.charAt(closeIndex) == openChar) {
-                    level++;
-                } else if (expr.charAt(closeIndex) == closeChar) {
-                    level--;
-                    if (level == 0) {
-                        break;
-                    }
-                }
-            }
-            // check only characters outside the outer brackets
-            outsideBrackets = expr.substring(0, openIndex) + expr.substring(closeIndex + 1);
-        } else {
-            outsideBrackets = expr;
-        }
-        if (NON_IDENT_CHARS.matcher(outsideBrackets).find()) {
-            return "(" + expr + ")";
-        } else {
-            return expr;
-        }
+    private static boolean isConstant(String s) {
+        return Character.isDigit(s.charAt(0)) || s.equals("true") || s.equals("false") || s.equals("null");
     }
 
-    private void cleanup() {
-        for (int i = 1; i < jackCode.size(); i++) {
-            if (jackCode.get(i - 1).length() == 0 && jackCode.get(i).length() == 0) {
-                jackCode.remove(i - 1);
-                i--;
-            }
-        }
+    private void emit(String cmd) {
+        writer.line(cmd);
     }
 
-    private void fixLiterals() {
-        for (int i = 0; i < jackCode.size(); i++) {
-            String tail = jackCode.get(i);
-            Matcher matcher = LITERAL_START.matcher(tail);
-            if (matcher.find()) {
-                int pos = matcher.start();
-                String head = tail.substring(0, pos);
-                tail = tail.substring(pos + 11);
-                int strLength = Integer.parseInt(tail.substring(0, tail.indexOf(')')));
-                StringBuilder stringLiteral = new StringBuilder("\"");
-                for (int j = 0; j < strLength; j++) {
-                    tail = tail.substring(tail.indexOf('(') + 1);
-                    stringLiteral.append((char) Integer.parseInt(tail.substring(0, tail.indexOf(')'))));
-                }
-                stringLiteral.append('"');
-                jackCode.set(i, head + stringLiteral + tail.substring(tail.indexOf(')') + 1));
-                i--;
+    private void emitVars(String id, Segment segment, int numVars) {
+        String varKind = segment.varKind;
+        for (int i = 0; i < numVars; i++) {
+            String doc = symbols.get(className, functionName, segment, i, SymbolTable.Attribute.DOC);
+            if (doc != null) {
+                emit(doc);
             }
+            emit(id + " " + getDeclaredName(getType(segment, i)) + " " + varKind + i + ";");
         }
     }
 
-    private String getLine(int line) {
-        return vmCode.get(line).trim().replaceAll("[ ]+", " ").split("//")[0].trim();
+    /**
+     * Emits the documentation of a class or function (if declared).
+     */
+    private void emitDoc(String owner) {
+        String doc = symbols.get(owner, SymbolTable.Property.DOC);
+        if (doc != null) {
+            emit(doc);
+        }
     }
 
-    private String getCmd() {
+    private Command getCmd() {
         return getCmd(linePtr);
     }
 
-    private String getCmd(int line) {
-        return getLine(line).split(" ")[0];
+    private Command getCmd(int line) {
+        return vmCode.get(line).command();
     }
 
     private int getIdx() {
@@ -833,61 +1210,64 @@ class DecompilationEngine {
     }
 
     private int getIdx(int line) {
-        try {
-            return Integer.parseInt(getLine(line).split(" ")[2]);
-        } catch (Exception e) {
-            return 0;
-        }
+        return vmCode.get(line).index();
     }
 
-    private String getSeg() {
-        return getSeg(linePtr);
+    private Segment getSegment() {
+        return getSegment(linePtr);
     }
 
-    private String getSeg(int line) {
-        try {
-            return getLine(line).split(" ")[1];
-        } catch (Exception e) {
-            return "";
-        }
+    private Segment getSegment(int line) {
+        return vmCode.get(line).segment();
+    }
+
+    /**
+     * Returns the function or label name of the command at the specified line or
+     * "" if the command doesn't have one.
+     */
+    private String getTarget() {
+        return getTarget(linePtr);
+    }
+
+    private String getTarget(int line) {
+        String target = vmCode.get(line).target();
+        return target == null ? "" : target;
     }
 
     private String getVar() {
-        String seg = getSeg();
+        Segment seg = getSegment();
         int index = getIdx();
-        if (seg.equals("pointer") && index == 0) {
+        if (seg == Segment.POINTER && index == 0) {
             return "this";
+        } else if (seg.varKind == null) {
+            return null;
         } else {
-            String varKind = SEGMENT_TO_VARKIND.get(seg);
-            if (varKind == null) {
-                return null;
-            } else {
-                return varKind + index;
-            }
+            return seg.varKind + index;
         }
     }
 
-    private void renameVars(List<String> code, String varKind, int varCount) {
-        for (int i = varCount - 1; i >= 0; i--) {
-            String varName = symbols.get(className, functionName, varKind + i + "$NAME");
+    /**
+     * Collects the new names of the variables in the specified segment, either the
+     * declared names or the generic names prefixed by the class type.
+     * 
+     * @param names    Map from the generic variable name to the new name.
+     * @param segment  Specifies the segment (static, this, local, argument).
+     * @param varCount The number of variables in the segment.
+     */
+    private void collectNames(Map<String, String> names, Segment segment, int varCount) {
+        String varKind = segment.varKind;
+        for (int i = 0; i < varCount; i++) {
+            String varName = symbols.get(className, functionName, segment, i, SymbolTable.Attribute.NAME);
             if (varName != null) {
-                replaceInList(code, varKind + i, varName);
+                names.put(varKind + i, varName);
             } else {
-                String varType = symbols.get(className, functionName, varKind + i);
+                String varType = symbols.get(className, functionName, segment, i, SymbolTable.Attribute.TYPE);
                 // replace Class types except Array (should be obvious due to the [] operator)
-                if (varType != null && TYPE_HIERARCHY.indexOf(varType) < TYPE_HIERARCHY.indexOf("Array")) {
+                if (varType != null && JackType.rank(varType) < JackType.rank(JackType.ARRAY)) {
                     varType = Character.toLowerCase(varType.charAt(0)) + varType.substring(1);
-                    // TODO: this may also falsely alter literals that coincidentally contain the
-                    // variable name (though unlikely)
-                    replaceInList(code, varKind + i, varType + "_" + varKind + i);
+                    names.put(varKind + i, varType + "_" + varKind + i);
                 }
             }
         }
     }
-
-    private static void replaceInList(List<String> list, String search, String replace) {
-        for (int i = 0; i < list.size(); i++) {
-            list.set(i, list.get(i).replaceAll(search, replace));
-        }
-    }
 }
@@ -1,18 +1,43 @@
 package io.github.axelkern.hack.decompiler;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import io.github.axelkern.hack.util.MappedTextFile;
 import io.github.axelkern.hack.util.Util;
 import io.github.axelkern.hack.util.Version;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.IVersionProvider;
+import picocli.CommandLine.Model.CommandSpec;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
+import picocli.CommandLine.Spec;
 
 /**
  * Decompiles VM code into Jack source code.
@@ -30,20 +55,76 @@ public class Decompiler implements Callable<Integer> {
         }
     }
 
-    @Parameters(index = "0", paramLabel = "<path>", description = "The file or directory to be decompiled")
-    static Path path;
+    @Parameters(index = "0", arity = "0..1", paramLabel = "<path>", description = "The file or directory to be decompiled (- for standard input)")
+    Path path;
     @Option(names = {
             "--overwrite" }, negatable = false, defaultValue = "false", description = "Overwrite existing .jack files")
-    static boolean overwrite;
+    boolean overwrite;
     @Option(names = {
             "--no-rename" }, negatable = false, defaultValue = "false", description = "Name all variables based on memory segment")
-    static boolean keepVarNames;
+    boolean keepVarNames;
     @Option(names = {
             "--char-as-int" }, negatable = false, defaultValue = "false", description = "Always use int type instead of char")
-    static boolean charAsInt;
+    boolean charAsInt;
     @Option(names = {
             "--no-force-char" }, negatable = true, defaultValue = "true", description = "Forces char type if compared to another char")
-    static boolean forceChar;
+    boolean forceChar;
+    @Option(names = { "-j",
+            "--jobs" }, paramLabel = "N", defaultValue = "1", description = "Number of threads decompiling classes and their functions concurrently (0 = number of processors)")
+    int jobs;
+    @Option(names = {
+            "--max-passes" }, paramLabel = "N", defaultValue = "0", description = "Maximum number of analysis passes (0 = until no more types change)")
+    int maxPasses;
+    @Option(names = {
+            "--structuring" }, paramLabel = "ENGINE", defaultValue = "PATTERN", description = "Engine for recovering if/while statements: ${COMPLETION-CANDIDATES}")
+    Structuring structuring;
+    @Option(names = {
+            "--compare-structuring" }, negatable = false, defaultValue = "false", description = "Decompile with all structuring engines and report time and differences")
+    boolean compareStructuring;
+    @Option(names = {
+            "--cache" }, paramLabel = "DIR", description = "Directory for keeping results between runs, unchanged classes are not decompiled again")
+    Path cacheDir;
+    @Option(names = { "-r",
+            "--recursive" }, negatable = false, defaultValue = "false", description = "Decompile each directory of the tree as a separate program (--jobs programs concurrently)")
+    boolean recursive;
+    @Option(names = {
+            "--stream" }, negatable = false, defaultValue = "false", description = "Read concatenated classes from a single file or standard input and write the Jack code to standard output, each class as soon as it has been read")
+    boolean stream;
+    @Option(names = { "-w",
+            "--watch" }, negatable = false, defaultValue = "false", description = "Keep running and decompile changed .vm files again (only the classes affected by a change)")
+    boolean watch;
+    @Option(names = {
+            "--daemon" }, negatable = false, defaultValue = "false", description = "Keep running and serve requests on a local socket (--jobs requests concurrently)")
+    boolean daemon;
+    @Option(names = {
+            "--connect" }, negatable = false, defaultValue = "false", description = "Send the request to a running daemon instead of decompiling in this process")
+    boolean connect;
+    @Option(names = {
+            "--socket" }, paramLabel = "FILE", description = "Socket file of the daemon (default: jack-decompiler-<user>.sock in the temp directory)")
+    Path socket;
+
+    @Spec
+    CommandSpec spec;
+    private final PrintStream out;
+    private final PrintStream err;
+    private final Path workingDir; // of the client, if serving a daemon request
+    private final Set<Path> writtenFiles = ConcurrentHashMap.newKeySet(); // by the watch mode
+    private DecompilerOptions options;
+
+    public Decompiler() {
+        this(System.out, System.err, null);
+    }
+
+    /**
+     * Creates a decompiler for a daemon request. Relative paths are resolved
+     * against the working directory of the client and errors fail the request
+     * instead of terminating the JVM.
+     */
+    Decompiler(PrintStream out, PrintStream err, Path workingDir) {
+        this.out = out;
+        this.err = err;
+        this.workingDir = workingDir;
+    }
 
     public static void main(String[] args) {
         int exitCode = new CommandLine(new Decompiler()).execute(args);
@@ -52,35 +133,336 @@ public class Decompiler implements Callable<Integer> {
 
     @Override
     public Integer call() {
-        io.github.axelkern.hack.util.Version.print("Jack Decompiler");
+        if (socket == null) {
+            socket = Paths.get(System.getProperty("java.io.tmpdir"),
+                    "jack-decompiler-" + System.getProperty("user.name") + ".sock");
+        }
+        boolean stdin = path != null && path.toString().equals("-");
+        if (connect) {
+            return stdin
+                    ? DecompilerDaemon.sendVm(socket, getForwardedArgs(true),
+                            new InputStreamReader(System.in, StandardCharsets.UTF_8), out, err)
+                    : DecompilerDaemon.send(socket, getForwardedArgs(false), out, err);
+        }
+        if (workingDir != null && (daemon || connect || watch || stdin)) {
+            err.println("--daemon, --connect, --watch and standard input cannot be used in a RUN request");
+            return 2;
+        }
+        int numJobs = jobs > 0 ? jobs : Runtime.getRuntime().availableProcessors();
+        if (daemon) {
+            return DecompilerDaemon.serve(socket, numJobs);
+        }
+        stream |= stdin;
+        Version.print(stream ? err : out, "Jack Decompiler"); // keeps the Jack code on standard output clean
+        options = getOptions();
+        if (path == null) {
+            err.println("Missing required parameter: '<path>'");
+            return 2;
+        }
+        if (workingDir != null) {
+            path = workingDir.resolve(path);
+            cacheDir = cacheDir != null ? workingDir.resolve(cacheDir) : null;
+        }
+        if (watch) {
+            if (recursive || cacheDir != null || !Files.exists(path)) {
+                err.println(Files.exists(path) ? "--watch cannot be combined with --recursive and --cache"
+                        : "File or directory not found");
+                return 1;
+            }
+            DeclarationReader.getDeclarations(out);
+            return new DecompilerWatcher(this, options, path, out, err).run();
+        }
+        if (stream) {
+            if (recursive || watch || cacheDir != null || compareStructuring || !stdin && !Files.isRegularFile(path)) {
+                err.println(stdin || Files.isRegularFile(path)
+                        ? "--stream cannot be combined with --recursive, --watch, --cache and --compare-structuring"
+                        : "File not found");
+                return 1;
+            }
+            DeclarationReader.getDeclarations(err); // keeps the Jack code on standard output clean
+            return decompileStream(stdin);
+        }
+        if (recursive) {
+            return decompilePrograms(numJobs);
+        }
         List<Path> files = Util.getFileList(path, ".vm");
         if (files.size() == 0) {
-            System.err.println("File or directory not found");
+            err.println("File or directory not found");
             return 1;
         }
-        DecompilationEngine decompiler = new DecompilationEngine();
-        for (int pass = 3; pass >= 0; pass--) {
-            final int passNum = pass;
-            files.forEach(file -> {
-                String className = file.getFileName().toString();
-                if (className.indexOf('.') >= 0) {
-                    className = className.substring(0, className.lastIndexOf('.'));
-                }
-                if (passNum > 0) { // analyzing
-                    decompiler.analyze(className, Util.readFileAsList(file));
-                } else { // decompiling
-                    System.out.println("Decompiling " + file.getFileName());
-                    String outputFileName = file.toString();
-                    outputFileName = outputFileName.substring(0, outputFileName.lastIndexOf(".vm")) + ".jack";
-                    if (!overwrite && Files.exists(Paths.get(outputFileName))) {
-                        System.err.println("Skipped existing file " + Paths.get(outputFileName).getFileName());
-                    } else {
-                        List<String> jackSource = decompiler.decompile(className, Util.readFileAsList(file));
-                        Util.writeFile(outputFileName, jackSource);
+        return decompileProgram(files, numJobs);
+    }
+
+    DecompilerOptions getOptions() {
+        return new DecompilerOptions(keepVarNames, charAsInt, forceChar, maxPasses, structuring);
+    }
+
+    /**
+     * Returns the command line without the options selecting the daemon.
+     *
+     * @param optionsOnly Whether to remove the path of standard input and
+     *                    --stream as well (for a VM request).
+     */
+    private List<String> getForwardedArgs(boolean optionsOnly) {
+        List<String> args = new ArrayList<>();
+        List<String> originalArgs = spec.commandLine().getParseResult().originalArgs();
+        for (int i = 0; i < originalArgs.size(); i++) {
+            String arg = originalArgs.get(i);
+            if (arg.equals("--socket")) {
+                i++; // skip the file
+            } else if (!arg.equals("--connect") && !arg.startsWith("--socket=")
+                    && !(optionsOnly && (arg.equals("-") || arg.equals("--stream")))) {
+                args.add(arg);
+            }
+        }
+        return args;
+    }
+
+    /**
+     * Decompiles each directory of the tree as an independent program. Each
+     * program has its own engine (sharing only the declarations), the programs
+     * are decompiled concurrently while the classes of a program are decompiled
+     * sequentially.
+     */
+    private int decompilePrograms(int numJobs) {
+        Map<Path, List<Path>> programs = Util.getFileTree(path, ".vm");
+        if (programs.size() == 0) {
+            err.println("File or directory not found");
+            return 1;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(numJobs);
+        try {
+            Map<Path, Future<Integer>> results = new LinkedHashMap<>();
+            programs.forEach((dir, files) -> results.put(dir, executor.submit(() -> {
+                out.println("Decompiling program " + dir);
+                return decompileProgram(files, 1);
+            })));
+            int failed = 0;
+            for (Map.Entry<Path, Future<Integer>> result : results.entrySet()) {
+                try {
+                    if (result.getValue().get() != 0) {
+                        failed++;
                     }
+                } catch (ExecutionException e) {
+                    err.println("Error: decompilation of " + result.getKey() + " failed (" + e.getCause() + ")");
+                    failed++;
                 }
-            });
+            }
+            out.println("Decompiled " + (programs.size() - failed) + " of " + programs.size() + " programs.");
+            return failed > 0 ? 1 : 0;
+        } catch (InterruptedException e) {
+            err.println("Error: decompilation interrupted");
+            return 1;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Decompiles the .vm files of a single program.
+     *
+     * @param files   The .vm files of the program.
+     * @param numJobs The number of classes to be decompiled concurrently.
+     * @return Returns the exit code.
+     */
+    private int decompileProgram(List<Path> files, int numJobs) {
+        DecompilerCache cache = openCache(files);
+        if (cache != null && cache.isComplete()) {
+            out.println("No changes since the last run, using cached results.");
+            // all classes have been read with the manifest, so no engine is needed
+            files.forEach(file -> decompileFile(null, file, null, cache, null));
+            return 0;
+        }
+        // each file is read and parsed only once and shared by all passes
+        Map<Path, VmCode> sources = new HashMap<>();
+        Map<String, VmCode> classes = new LinkedHashMap<>();
+        files.forEach(file -> {
+            sources.put(file, VmCode.parse(readFile(file)));
+            classes.put(getClassName(file), sources.get(file));
+        });
+        ForkJoinPool pool = numJobs > 1 ? new ForkJoinPool(numJobs) : null;
+        try {
+            DeclarationReader.getDeclarations(out);
+            DecompilationEngine decompiler = new DecompilationEngine(options, err);
+            int passes = decompiler.analyze(classes, pool);
+            out.println("Analyzed " + classes.size() + " classes in " + passes + " passes.");
+            if (cache != null) {
+                cache.update(decompiler, classes);
+            }
+            // decompiling (each class on its own fork, so the order doesn't affect the result)
+            if (pool == null) {
+                files.forEach(file -> decompileFile(decompiler, file, sources.get(file), cache, null));
+            } else {
+                // largest files first, so that a huge class doesn't finish last; the functions of
+                // each class are decompiled concurrently as well, so idle workers help with huge classes
+                List<Path> sortedFiles = new ArrayList<>(files);
+                sortedFiles.sort(Comparator.comparingInt((Path file) -> sources.get(file).size()).reversed());
+                List<Future<?>> results = new ArrayList<>();
+                for (Path file : sortedFiles) {
+                    results.add(pool.submit(() -> decompileFile(decompiler, file, sources.get(file), cache, pool)));
+                }
+                for (Future<?> result : results) {
+                    result.get();
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            err.println("Error: decompilation failed (" + e.getMessage() + ")");
+            return 1;
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        if (cache != null) {
+            cache.save();
         }
         return 0;
     }
+
+    /**
+     * Decompiles the concatenated classes of a file or standard input and writes
+     * each class to standard output as soon as it has been read. Progress is
+     * reported on the error output.
+     *
+     * @param stdin Whether to read standard input instead of the file.
+     * @return Returns the exit code.
+     */
+    private int decompileStream(boolean stdin) {
+        long startTime = System.nanoTime();
+        try (Reader in = stdin ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                : Files.newBufferedReader(path)) {
+            int count = new ProgramDecompiler(options, err).decompile(in, (className, jackCode) -> {
+                err.println("Decompiled " + className);
+                out.print(jackCode);
+                out.flush();
+            });
+            err.printf("Decompiled %d classes in %.0f ms.%n", count, (System.nanoTime() - startTime) / 1e6);
+            return 0;
+        } catch (IOException | UncheckedIOException e) {
+            err.println("Error reading " + (stdin ? "standard input" : path) + " (" + e.getMessage() + ")");
+            return 1;
+        }
+    }
+
+    /**
+     * Opens the cache if a cache directory was specified.
+     *
+     * @return Returns the cache or null if caching is disabled or fails.
+     */
+    private DecompilerCache openCache(List<Path> files) {
+        if (cacheDir == null || compareStructuring) {
+            return null;
+        }
+        Map<String, Path> classFiles = new HashMap<>();
+        files.forEach(file -> classFiles.put(getClassName(file), file));
+        try {
+            Path codeSource = Paths.get(Decompiler.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            String configuration = String.join(" ", PROGRAM_NAME, Files.getLastModifiedTime(codeSource).toString(),
+                    DeclarationReader.getFingerprint(), options.toString());
+            return new DecompilerCache(cacheDir, classFiles, configuration, err);
+        } catch (IOException | URISyntaxException | SecurityException e) {
+            err.println("Cache disabled (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+
+    /**
+     * Decompiles a class and writes the .jack file next to the .vm file.
+     *
+     * @param decompiler The engine after analyzing the program (forked for the
+     *                   class).
+     * @param file       The .vm file.
+     * @param source     The VM code of the file (unused if it is cached).
+     * @param cache      The cache or null.
+     * @param pool       The pool decompiling the functions of the class
+     *                   concurrently or null.
+     */
+    void decompileFile(DecompilationEngine decompiler, Path file, VmCode source, DecompilerCache cache,
+            ForkJoinPool pool) {
+        String outputFileName = file.toString();
+        outputFileName = outputFileName.substring(0, outputFileName.lastIndexOf(".vm")) + ".jack";
+        String className = getClassName(file);
+        String cached = cache != null ? cache.get(className) : null;
+        out.println((cached != null ? "Using cached " : "Decompiling ") + file.getFileName());
+        if (!overwrite && Files.exists(Paths.get(outputFileName))
+                && !writtenFiles.contains(Paths.get(outputFileName))) { // the watch mode rewrites its own files
+            err.println("Skipped existing file " + Paths.get(outputFileName).getFileName());
+        } else {
+            try (Writer out = Files.newBufferedWriter(Paths.get(outputFileName))) {
+                if (cached != null) {
+                    out.write(cached);
+                } else if (compareStructuring) {
+                    out.write(compareStructuring(decompiler, className, source));
+                } else if (cache != null) {
+                    StringWriter jackCode = new StringWriter();
+                    decompiler.fork().decompile(className, source, jackCode, pool);
+                    cache.put(className, jackCode.toString());
+                    out.write(jackCode.toString());
+                } else {
+                    decompiler.fork().decompile(className, source, out, pool);
+                }
+                if (watch) {
+                    writtenFiles.add(Paths.get(outputFileName));
+                }
+            } catch (IOException | UncheckedIOException e) {
+                error("Error writing " + outputFileName, e);
+            }
+        }
+    }
+
+    private List<String> readFile(Path file) {
+        try {
+            return MappedTextFile.open(file);
+        } catch (IOException e) {
+            error("Error reading " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Reports a fatal error. On the command line the JVM is terminated, while
+     * serving a daemon request only the request fails.
+     */
+    private void error(String msg, Exception cause) {
+        if (workingDir == null) {
+            Util.error(msg);
+        }
+        IOException ioException = cause instanceof UncheckedIOException unchecked ? unchecked.getCause()
+                : (IOException) cause;
+        throw new UncheckedIOException(msg, ioException);
+    }
+
+    /**
+     * Decompiles a class with each structuring engine, reports the time it took
+     * and whether the results differ.
+     * 
+     * @return Returns the result of the selected structuring engine.
+     */
+    private String compareStructuring(DecompilationEngine decompiler, String className, VmCode source) {
+        Map<Structuring, String> results = new EnumMap<>(Structuring.class);
+        StringBuilder report = new StringBuilder("Structuring " + className + ":");
+        for (Structuring engine : Structuring.values()) {
+            DecompilationEngine fork = decompiler.fork(engine);
+            StringWriter out = new StringWriter();
+            long startTime = System.nanoTime();
+            fork.decompile(className, source, out);
+            results.put(engine, out.toString());
+            report.append(String.format(" %s %.3f ms,", engine, (System.nanoTime() - startTime) / 1e6));
+        }
+        if (results.values().stream().distinct().count() == 1) {
+            report.append(" identical");
+        } else {
+            report.append(" different");
+        }
+        out.println(report);
+        return results.get(structuring);
+    }
+
+    static String getClassName(Path file) {
+        String className = file.getFileName().toString();
+        if (className.indexOf('.') >= 0) {
+            className = className.substring(0, className.lastIndexOf('.'));
+        }
+        return className;
+    }
 }
@@ -0,0 +1,213 @@
+package io.github.axelkern.hack.decompiler;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Keeps decompiled classes in a directory between runs.<br>
+ * <br>
+ * Each decompiled class is stored under a key derived from the configuration
+ * (options, version and declarations), the content of its .vm file and the
+ * types learned for the class and all classes it calls. For each program (set
+ * of .vm files with their content hashes) a manifest lists the keys of its
+ * classes. If the manifest of a program exists and all its classes are
+ * cached, neither analysis nor decompilation is required. In that case the
+ * cached classes are read together with the manifest, so that an entry
+ * removed afterwards (i.e. by another run) can't get lost. Otherwise the
+ * program is analyzed again (types flow between classes in both directions),
+ * but only classes whose key has changed are decompiled.<br>
+ * <br>
+ * Errors while reading or writing the cache are reported, but never stop the
+ * decompilation.
+ */
+final class DecompilerCache {
+    private static final String PROGRAM_EXTENSION = ".program";
+    private static final String CLASS_EXTENSION = ".jack";
+
+    private final Path dir;
+    private final String configuration;
+    private final Map<String, String> contentHashes = new TreeMap<>(); // by class name
+    private final Path programFile;
+    private final Map<String, String> classKeys = new HashMap<>(); // by class name
+    private final Map<String, String> entries = new HashMap<>(); // read with the manifest, by class name
+    private final PrintStream err;
+    private boolean complete;
+
+    /**
+     * Opens the cache and looks up the manifest of the program.
+     *
+     * @param dir           The cache directory (created if missing).
+     * @param files         The .vm files mapped by class name.
+     * @param configuration Everything besides the VM code the result depends on.
+     * @param err           Target of the error messages.
+     * @throws IOException If the directory cannot be created or a .vm file
+     *                     cannot be read.
+     */
+    DecompilerCache(Path dir, Map<String, Path> files, String configuration, PrintStream err) throws IOException {
+        this.dir = dir;
+        this.configuration = configuration;
+        this.err = err;
+        Files.createDirectories(dir);
+        MessageDigest program = newDigest();
+        update(program, configuration);
+        for (Map.Entry<String, Path> file : files.entrySet()) {
+            byte[] hash = newDigest().digest(Files.readAllBytes(file.getValue()));
+            contentHashes.put(file.getKey(), HexFormat.of().formatHex(hash));
+        }
+        contentHashes.forEach((className, hash) -> {
+            update(program, className);
+            update(program, hash);
+        });
+        programFile = dir.resolve(HexFormat.of().formatHex(program.digest()) + PROGRAM_EXTENSION);
+        if (Files.exists(programFile)) {
+            for (String line : Files.readAllLines(programFile)) {
+                int pos = line.indexOf(' ');
+                if (pos > 0) {
+                    classKeys.put(line.substring(0, pos), line.substring(pos + 1));
+                }
+            }
+            complete = classKeys.keySet().equals(contentHashes.keySet()) && readEntries();
+        }
+    }
+
+    /**
+     * Reads the cached Jack code of all classes of the manifest.
+     *
+     * @return Returns false if a class isn't cached.
+     */
+    private boolean readEntries() {
+        for (Map.Entry<String, String> classKey : classKeys.entrySet()) {
+            String jackCode = read(classKey.getValue());
+            if (jackCode == null) {
+                entries.clear();
+                return false;
+            }
+            entries.put(classKey.getKey(), jackCode);
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the results of all classes of the program are cached, so that
+     * nothing has to be analyzed. get() never fails for a complete program.
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Derives the keys of all classes from the types learned by the analysis.
+     *
+     * @param decompiler The engine after analyzing the program.
+     * @param classes    The VM code of all classes mapped by class name.
+     */
+    void update(DecompilationEngine decompiler, Map<String, VmCode> classes) {
+        Map<String, Long> fingerprints = decompiler.getTypeFingerprints();
+        classKeys.clear();
+        for (Map.Entry<String, VmCode> vmClass : classes.entrySet()) {
+            MessageDigest key = newDigest();
+            update(key, configuration);
+            update(key, vmClass.getKey());
+            update(key, contentHashes.get(vmClass.getKey()));
+            update(key, decompiler.getArrayOrder());
+            Set<String> dependencies = new TreeSet<>(vmClass.getValue().getCalledClasses());
+            dependencies.add(vmClass.getKey());
+            for (String dependency : dependencies) {
+                update(key, dependency + "=" + fingerprints.getOrDefault(dependency, 0L));
+            }
+            classKeys.put(vmClass.getKey(), HexFormat.of().formatHex(key.digest()));
+        }
+        entries.clear();
+        complete = false;
+    }
+
+    /**
+     * Returns the cached Jack code of a class or null if it isn't cached.
+     */
+    String get(String className) {
+        String jackCode = entries.get(className);
+        if (jackCode != null) {
+            return jackCode;
+        }
+        String key = classKeys.get(className);
+        return key != null ? read(key) : null;
+    }
+
+    private String read(String key) {
+        try {
+            return Files.readString(dir.resolve(key + CLASS_EXTENSION));
+        } catch (IOException e) {
+            return null; // not cached
+        }
+    }
+
+    /**
+     * Stores the Jack code of a class.
+     */
+    void put(String className, String jackCode) {
+        String key = classKeys.get(className);
+        if (key != null) {
+            try {
+                write(dir.resolve(key + CLASS_EXTENSION), jackCode);
+            } catch (IOException e) {
+                err.println("Error writing cache entry for " + className);
+            }
+        }
+    }
+
+    /**
+     * Stores the manifest of the program, so that the next run with unchanged
+     * files can skip the analysis.
+     */
+    void save() {
+        List<String> lines = new ArrayList<>();
+        new TreeMap<>(classKeys).forEach((className, key) -> lines.add(className + " " + key));
+        try {
+            write(programFile, String.join("\n", lines) + "\n");
+        } catch (IOException e) {
+            err.println("Error writing cache manifest " + programFile.getFileName());
+        }
+    }
+
+    /**
+     * Writes a file via a temporary file, so that concurrent runs never read an
+     * incomplete file.
+     */
+    private static void write(Path file, String content) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + "." + ProcessHandle.current().pid() + "."
+                + Thread.currentThread().threadId() + ".tmp");
+        try {
+            Files.writeString(tempFile, content);
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        digest.update(s.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every Java platform supports SHA-256
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package io.github.axelkern.hack.decompiler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.github.axelkern.hack.util.Version;
+import picocli.CommandLine;
+
+/**
+ * Serves decompilation requests on a Unix domain socket, so that the JVM
+ * startup, loading the declarations and warming up the JIT are only paid once.
+ * Only the owner of the socket file can connect. Each connection carries one
+ * request of UTF-8 lines:
+ *
+ * <pre>
+ * RUN &lt;n&gt;              decompile files like the command line
+ * &lt;working directory&gt;    relative paths are resolved against it
+ * &lt;n lines, one argument each&gt;
+ *
+ * VM &lt;n&gt; &lt;classes&gt;      decompile inline VM code
+ * &lt;n lines, one option each&gt;
+ * &lt;class name&gt; &lt;lines&gt;  for each class, followed by its VM code
+ * </pre>
+ *
+ * The daemon answers with lines starting with "O " (standard output), "E "
+ * (error output) or "CLASS &lt;class name&gt; &lt;lines&gt;" followed by the Jack
+ * code of a class (VM requests only). The last line is "EXIT &lt;code&gt;".
+ * Since the protocol is plain text, any tool able to talk to a Unix domain
+ * socket (i.e. socat) can be used as a client. The thin client sends standard
+ * input as a VM request, all other command lines as RUN requests.
+ */
+final class DecompilerDaemon {
+    private static final String RUN = "RUN";
+    private static final String VM = "VM";
+    private static final String EXIT = "EXIT";
+    private static final String CLASS = "CLASS";
+    private static final String OUT = "O ";
+    private static final String ERR = "E ";
+
+    private DecompilerDaemon() {
+    }
+
+    /**
+     * Listens on the socket until the JVM is terminated.
+     *
+     * @param socket The socket file (removed on shutdown).
+     * @param jobs   The number of requests served concurrently.
+     * @return Returns the exit code, if the daemon cannot be started.
+     */
+    static int serve(Path socket, int jobs) {
+        if (Files.exists(socket)) {
+            try {
+                SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+                System.err.println("A daemon is already listening on " + socket);
+                return 1;
+            } catch (IOException e) {
+                // stale socket file of a terminated daemon
+            }
+        }
+        Version.print("Jack Decompiler daemon");
+        DeclarationReader.getDeclarations(System.out); // resident from now on
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            Files.deleteIfExists(socket);
+            server.bind(UnixDomainSocketAddress.of(socket));
+            try {
+                Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // not a POSIX file system, the socket is protected by the temp directory
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socket);
+                } catch (IOException e) {
+                    // nothing left to do
+                }
+            }));
+            System.out.println("Listening on " + socket + " (" + jobs + " concurrent requests)");
+            while (true) {
+                SocketChannel client = server.accept();
+                executor.execute(() -> handle(client));
+            }
+        } catch (IOException e) {
+            System.err.println("Error: daemon stopped (" + e.getMessage() + ")");
+            return 1;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void handle(SocketChannel client) {
+        try (client;
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8));
+                Writer connection = new BufferedWriter(
+                        new OutputStreamWriter(Channels.newOutputStream(client), StandardCharsets.UTF_8))) {
+            PrintStream out = new PrintStream(new LineOutputStream(connection, OUT), true, StandardCharsets.UTF_8);
+            PrintStream err = new PrintStream(new LineOutputStream(connection, ERR), true, StandardCharsets.UTF_8);
+            int exitCode;
+            try {
+                String[] request = readLine(in).split(" ");
+                if (request[0].equals(RUN) && request.length == 2) {
+                    exitCode = run(in, Integer.parseInt(request[1]), out, err);
+                } else if (request[0].equals(VM) && request.length == 3) {
+                    exitCode = decompileVm(in, Integer.parseInt(request[1]), Integer.parseInt(request[2]), connection,
+                            out, err);
+                } else {
+                    err.println("Error: unknown request " + request[0]);
+                    exitCode = 2;
+                }
+            } catch (IOException | RuntimeException e) {
+                err.println("Error: request failed (" + e.getMessage() + ")");
+                exitCode = 1;
+            }
+            out.close(); // the connection stays open
+            err.close();
+            synchronized (connection) {
+                connection.write(EXIT + " " + exitCode + "\n");
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // client gone
+        }
+    }
+
+    /**
+     * Runs the command line sent by the client in this JVM.
+     */
+    private static int run(BufferedReader in, int numArgs, PrintStream out, PrintStream err) throws IOException {
+        Path workingDir = Paths.get(readLine(in));
+        List<String> args = readLines(in, numArgs);
+        System.out.println("Request: " + String.join(" ", args));
+        CommandLine commandLine = new CommandLine(new Decompiler(out, err, workingDir));
+        commandLine.setOut(new PrintWriter(out, true));
+        commandLine.setErr(new PrintWriter(err, true));
+        return commandLine.execute(args.toArray(new String[0]));
+    }
+
+    /**
+     * Decompiles the VM code sent by the client and sends back the Jack code.
+     */
+    private static int decompileVm(BufferedReader in, int numArgs, int numClasses, Writer connection,
+            PrintStream out, PrintStream err) throws IOException {
+        List<String> args = readLines(in, numArgs);
+        Map<String, List<String>> classes = new LinkedHashMap<>();
+        for (int i = 0; i < numClasses; i++) {
+            String[] header = readLine(in).split(" ");
+            classes.put(header[0], readLines(in, Integer.parseInt(header[1])));
+        }
+        System.out.println("Request: " + classes.size() + " inline classes");
+        Decompiler decompiler = new Decompiler(out, err, null);
+        CommandLine commandLine = new CommandLine(decompiler);
+        try {
+            commandLine.parseArgs(args.toArray(new String[0]));
+        } catch (CommandLine.ParameterException e) {
+            err.println(e.getMessage());
+            return 2;
+        }
+        Map<String, String> jackClasses = new ProgramDecompiler(decompiler.getOptions(), err).decompile(classes);
+        synchronized (connection) {
+            for (Map.Entry<String, String> jackClass : jackClasses.entrySet()) {
+                List<String> lines = jackClass.getValue().lines().toList();
+                connection.write(CLASS + " " + jackClass.getKey() + " " + lines.size() + "\n");
+                for (String line : lines) {
+                    connection.write(line + "\n");
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Sends a command line to the daemon and prints its output.
+     *
+     * @param socket The socket file of the daemon.
+     * @param args   The command line.
+     * @param out    Target of the standard output of the daemon.
+     * @param err    Target of the error output of the daemon.
+     * @return Returns the exit code of the request.
+     */
+    static int send(Path socket, List<String> args, PrintStream out, PrintStream err) {
+        List<String> request = new ArrayList<>();
+        request.add(RUN + " " + args.size());
+        request.add(Paths.get("").toAbsolutePath().toString());
+        request.addAll(args);
+        return sendRequest(socket, request, out, err);
+    }
+
+    /**
+     * Sends VM code with any number of concatenated classes to the daemon and
+     * prints the Jack code of each class. Unlike decompiling a stream in this
+     * process, all classes are analyzed together.
+     *
+     * @param socket  The socket file of the daemon.
+     * @param options The options of the command line.
+     * @param in      The VM code.
+     * @param out     Target of the Jack code.
+     * @param err     Target of the error output of the daemon.
+     * @return Returns the exit code of the request.
+     */
+    static int sendVm(Path socket, List<String> options, Reader in, PrintStream out, PrintStream err) {
+        Map<String, List<String>> classes = new LinkedHashMap<>();
+        try {
+            VmClassReader reader = new VmClassReader(new BufferedReader(in));
+            for (VmClassReader.VmClass vmClass = reader.next(); vmClass != null; vmClass = reader.next()) {
+                // a class whose functions are not contiguous is sent as a whole
+                classes.computeIfAbsent(vmClass.className(), k -> new ArrayList<>()).addAll(vmClass.source());
+            }
+        } catch (IOException | UncheckedIOException e) {
+            err.println("Error reading standard input (" + e.getMessage() + ")");
+            return 1;
+        }
+        List<String> request = new ArrayList<>();
+        request.add(VM + " " + options.size() + " " + classes.size());
+        request.addAll(options);
+        classes.forEach((className, source) -> {
+            request.add(className + " " + source.size());
+            request.addAll(source);
+        });
+        return sendRequest(socket, request, out, err);
+    }
+
+    private static int sendRequest(Path socket, List<String> request, PrintStream out, PrintStream err) {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+                Writer connection = new BufferedWriter(
+                        new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8))) {
+            for (String line : request) {
+                connection.write(line + "\n");
+            }
+            connection.flush();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(OUT)) {
+                    out.println(line.substring(OUT.length()));
+                } else if (line.startsWith(ERR)) {
+                    err.println(line.substring(ERR.length()));
+                } else if (line.startsWith(CLASS + " ")) {
+                    String[] header = line.split(" ");
+                    for (String jackLine : readLines(in, Integer.parseInt(header[2]))) {
+                        out.println(jackLine);
+                    }
+                } else if (line.startsWith(EXIT + " ")) {
+                    return Integer.parseInt(line.substring(EXIT.length() + 1));
+                }
+            }
+            err.println("Error: connection to the daemon lost");
+            return 1;
+        } catch (IOException e) {
+            err.println("No daemon listening on " + socket + " (start one with --daemon)");
+            return 1;
+        }
+    }
+
+    private static String readLine(BufferedReader in) throws IOException {
+        String line = in.readLine();
+        if (line == null) {
+            throw new IOException("incomplete request");
+        }
+        return line;
+    }
+
+    private static List<String> readLines(BufferedReader in, int count) throws IOException {
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add(readLine(in));
+        }
+        return lines;
+    }
+
+    /**
+     * Sends each line written to it with a prefix to the client, so that the
+     * output of concurrent threads is never mixed within a line.
+     */
+    private static final class LineOutputStream extends OutputStream {
+        private final Writer connection;
+        private final String prefix;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        LineOutputStream(Writer connection, String prefix) {
+            this.connection = connection;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (b == '\n') {
+                sendLine();
+            } else if (b != '\r') {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        /**
+         * Sends the last line, even if it isn't terminated.
+         */
+        @Override
+        public synchronized void close() {
+            if (line.size() > 0) {
+                sendLine();
+            }
+        }
+
+        private void sendLine() {
+            try {
+                synchronized (connection) {
+                    connection.write(prefix + line.toString(StandardCharsets.UTF_8) + "\n");
+                    connection.flush();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            line.reset();
+        }
+    }
+}
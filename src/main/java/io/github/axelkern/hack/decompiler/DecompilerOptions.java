@@ -0,0 +1,36 @@
+package io.github.axelkern.hack.decompiler;
+
+/**
+ * The options of a decompilation. Options are immutable, so that decompilations
+ * with different options can run concurrently in the same JVM.
+ *
+ * @param keepVarNames Name all variables based on memory segment instead of
+ *                     their type.
+ * @param charAsInt    Always use int type instead of char.
+ * @param forceChar    Forces char type if compared to another char.
+ * @param maxPasses    Maximum number of analysis passes (0 = until no more
+ *                     types change).
+ * @param structuring  Engine for recovering if/while statements.
+ */
+public record DecompilerOptions(boolean keepVarNames, boolean charAsInt, boolean forceChar, int maxPasses,
+        Structuring structuring) {
+
+    /**
+     * The defaults of the command line.
+     */
+    public static final DecompilerOptions DEFAULT = new DecompilerOptions(false, false, true, 0,
+            Structuring.PATTERN);
+
+    public DecompilerOptions {
+        if (structuring == null) {
+            throw new IllegalArgumentException("structuring must not be null");
+        }
+    }
+
+    /**
+     * Returns a copy of these options using another structuring engine.
+     */
+    public DecompilerOptions withStructuring(Structuring structuring) {
+        return new DecompilerOptions(keepVarNames, charAsInt, forceChar, maxPasses, structuring);
+    }
+}
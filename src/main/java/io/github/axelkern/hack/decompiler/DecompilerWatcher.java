@@ -0,0 +1,293 @@
+package io.github.axelkern.hack.decompiler;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Watches the .vm files of a program and decompiles them again whenever they
+ * are changed.<br>
+ * <br>
+ * The analyzed engine and the parsed VM code stay in memory. After a burst of
+ * changes has settled, the entries of all classes connected to the changed
+ * classes by calls (before and after the change, in either direction) are
+ * discarded, since types travel from callers to callees and back. Only these
+ * classes are analyzed again, until no more types change. The classes of the
+ * operating system are only followed if types have been learned for them. The
+ * whole program is analyzed again if the changed classes are connected to all
+ * classes or the order of array and index might be derived differently. A
+ * class is only decompiled again if its VM code or the types of its own entries
+ * or the entries of a class it calls have changed. So the Jack code is always
+ * the same as after decompiling the program from scratch.
+ */
+final class DecompilerWatcher {
+    private static final long DEBOUNCE_MILLIS = 200;
+
+    private final Decompiler decompiler;
+    private final DecompilerOptions options;
+    private final Path dir;
+    private final Path file; // null if the whole directory is watched
+    private final PrintStream out;
+    private final PrintStream err;
+    private final Map<String, VmCode> classes = new TreeMap<>(); // by class name, in a stable order
+    private final Map<String, Path> files = new HashMap<>(); // by class name
+    private final Map<String, Set<String>> calledClasses = new HashMap<>(); // by class name
+    private Map<String, Long> signatures = new HashMap<>(); // by class name
+    private DecompilationEngine engine; // null if the program has to be decompiled from scratch
+
+    /**
+     * Creates a watcher.
+     *
+     * @param decompiler The decompiler writing the .jack files.
+     * @param options    The options of the engine.
+     * @param path       The .vm file or the directory to be watched.
+     * @param out        Target of the progress messages.
+     * @param err        Target of the error messages.
+     */
+    DecompilerWatcher(Decompiler decompiler, DecompilerOptions options, Path path, PrintStream out,
+            PrintStream err) {
+        this.decompiler = decompiler;
+        this.options = options;
+        Path absolutePath = path.toAbsolutePath();
+        this.dir = Files.isDirectory(absolutePath) ? absolutePath : absolutePath.getParent();
+        this.file = Files.isDirectory(absolutePath) ? null : absolutePath;
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Decompiles the program and then watches it until the JVM is terminated.
+     *
+     * @return Returns the exit code, if watching fails.
+     */
+    int run() {
+        try (WatchService watchService = dir.getFileSystem().newWatchService()) {
+            dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            Set<Path> changes = null;
+            while (true) {
+                if (changes == null || !changes.isEmpty()) {
+                    try {
+                        if (engine == null || changes == null) { // first run or events have been lost
+                            decompileAll();
+                        } else {
+                            update(changes);
+                        }
+                    } catch (RuntimeException e) { // i.e. a file which has only been written partially
+                        err.println("Error: decompilation failed (" + e + "), waiting for the next change");
+                        engine = null;
+                    }
+                    out.println("Watching " + (file != null ? file : dir) + " for changes...");
+                }
+                changes = waitForChanges(watchService);
+            }
+        } catch (IOException e) {
+            err.println("Error: watching " + dir + " failed (" + e.getMessage() + ")");
+            return 1;
+        } catch (InterruptedException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Waits for changes and collects further changes until none have been
+     * reported for a while (i.e. a compiler writing all files of a program).
+     *
+     * @return Returns the changed .vm files or null if events have been lost.
+     */
+    private Set<Path> waitForChanges(WatchService watchService) throws InterruptedException {
+        Set<Path> changes = new TreeSet<>();
+        WatchKey key = watchService.take();
+        while (key != null) {
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    key.reset();
+                    return null;
+                }
+                Path changedFile = dir.resolve((Path) event.context());
+                if (isWatched(changedFile)) {
+                    changes.add(changedFile);
+                }
+            }
+            if (!key.reset()) {
+                throw new InterruptedException(); // directory no longer accessible
+            }
+            key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return changes;
+    }
+
+    private boolean isWatched(Path changedFile) {
+        return file != null ? changedFile.equals(file) : changedFile.toString().endsWith(".vm");
+    }
+
+    /**
+     * Reads, analyzes and decompiles the whole program with a new engine.
+     */
+    void decompileAll() {
+        long startTime = System.nanoTime();
+        classes.clear();
+        files.clear();
+        calledClasses.clear();
+        try (Stream<Path> list = Files.list(dir)) {
+            for (Path vmFile : list.filter(this::isWatched).sorted().toList()) {
+                read(vmFile);
+            }
+        } catch (IOException e) {
+            err.println("Error reading " + dir);
+        }
+        engine = new DecompilationEngine(options, err);
+        int passes = engine.analyze(classes);
+        signatures = getSignatures();
+        classes.forEach(
+                (className, source) -> decompiler.decompileFile(engine, files.get(className), source, null, null));
+        out.printf("Decompiled %d classes in %.0f ms (%d passes).%n", classes.size(),
+                (System.nanoTime() - startTime) / 1e6, passes);
+    }
+
+    /**
+     * Updates the analysis and decompiles the affected classes.
+     */
+    void update(Set<Path> changes) {
+        long startTime = System.nanoTime();
+        Set<String> changedClasses = new HashSet<>();
+        Map<String, Set<String>> oldCalledClasses = new HashMap<>();
+        for (Path vmFile : changes) {
+            String className = Decompiler.getClassName(vmFile);
+            oldCalledClasses.put(className, calledClasses.getOrDefault(className, Set.of()));
+            if (!Files.exists(vmFile) || !read(vmFile)) { // deleted
+                classes.remove(className);
+                files.remove(className);
+                calledClasses.remove(className);
+            }
+            changedClasses.add(className);
+        }
+        Set<String> reset = getConnectedClasses(changedClasses, oldCalledClasses);
+        // the classes analyzed before the order has been derived depend on it
+        String arrayOrderClass = engine.getArrayOrderClass();
+        String firstClass = classes.keySet().stream().filter(reset::contains).findFirst().orElse(null);
+        boolean knownOrder = !engine.getArrayOrder().equals("UNKNOWN");
+        boolean incremental = !reset.containsAll(classes.keySet())
+                && (!knownOrder || arrayOrderClass != null && !reset.contains(arrayOrderClass)
+                        && (firstClass == null || firstClass.compareTo(arrayOrderClass) > 0));
+        int passes = 0;
+        if (incremental) {
+            passes = engine.reanalyze(classes, reset);
+            incremental = knownOrder || engine.getArrayOrder().equals("UNKNOWN");
+        }
+        if (!incremental) {
+            engine = new DecompilationEngine(options, err);
+            passes = engine.analyze(classes);
+        }
+        Map<String, Long> newSignatures = getSignatures();
+        int decompiled = 0;
+        for (Map.Entry<String, VmCode> vmClass : classes.entrySet()) {
+            String className = vmClass.getKey();
+            if (changedClasses.contains(className) || !newSignatures.get(className).equals(signatures.get(className))) {
+                decompiler.decompileFile(engine, files.get(className), vmClass.getValue(), null, null);
+                decompiled++;
+            }
+        }
+        signatures = newSignatures;
+        out.printf("Decompiled %d of %d classes in %.0f ms (%d passes).%n", decompiled, classes.size(),
+                (System.nanoTime() - startTime) / 1e6, passes);
+    }
+
+    /**
+     * Returns all classes connected to the changed classes by calls before or
+     * after the change (including the changed classes). Classes of the
+     * operating system only connect their callers if types have been learned
+     * for them.
+     *
+     * @param changedClasses   The changed, added or removed classes.
+     * @param oldCalledClasses The classes called by the changed classes before
+     *                         the change.
+     */
+    private Set<String> getConnectedClasses(Set<String> changedClasses, Map<String, Set<String>> oldCalledClasses) {
+        Map<String, Set<String>> neighbours = new HashMap<>();
+        BiConsumer<String, Set<String>> addCalls = (className, called) -> {
+            for (String calledClass : called) {
+                neighbours.computeIfAbsent(className, k -> new HashSet<>()).add(calledClass);
+                neighbours.computeIfAbsent(calledClass, k -> new HashSet<>()).add(className);
+            }
+        };
+        calledClasses.forEach(addCalls);
+        oldCalledClasses.forEach(addCalls);
+        Set<String> learned = engine.getTypeFingerprints().keySet();
+        Set<String> result = new HashSet<>(changedClasses);
+        Deque<String> pending = new ArrayDeque<>(changedClasses);
+        while (!pending.isEmpty()) {
+            String className = pending.pop();
+            if (!classes.containsKey(className) && !changedClasses.contains(className)
+                    && !learned.contains(className)) {
+                continue; // nothing can travel through this class
+            }
+            for (String neighbour : neighbours.getOrDefault(className, Set.of())) {
+                if (result.add(neighbour)) {
+                    pending.push(neighbour);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads and parses a .vm file. Files are read into memory instead of being
+     * mapped, since they may be rewritten at any time.
+     *
+     * @return Returns true if the file could be read.
+     */
+    private boolean read(Path vmFile) {
+        try {
+            String className = Decompiler.getClassName(vmFile);
+            VmCode source = VmCode.parse(Files.readAllLines(vmFile));
+            classes.put(className, source);
+            files.put(className, vmFile);
+            calledClasses.put(className, source.getCalledClasses());
+            return true;
+        } catch (IOException e) {
+            err.println("Error reading " + vmFile);
+            return false;
+        }
+    }
+
+    /**
+     * Returns a value for each class, which changes whenever the types the Jack
+     * code of the class depends on (its own entries and the entries of the
+     * classes it calls) change.
+     */
+    private Map<String, Long> getSignatures() {
+        Map<String, Long> fingerprints = engine.getTypeFingerprints();
+        Map<String, Long> result = new HashMap<>();
+        classes.forEach((className, source) -> {
+            Set<String> dependencies = new TreeSet<>(calledClasses.get(className));
+            dependencies.add(className);
+            long signature = engine.getArrayOrder().hashCode();
+            for (String dependency : dependencies) {
+                signature = signature * 1000003 + dependency.hashCode() * 31L
+                        + fingerprints.getOrDefault(dependency, 0L);
+            }
+            result.put(className, signature);
+        });
+        return result;
+    }
+}
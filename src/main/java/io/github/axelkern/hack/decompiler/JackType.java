@@ -0,0 +1,147 @@
+package io.github.axelkern.hack.decompiler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the Jack types used while deriving types. Each type is interned
+ * as a small int ID, so that the engine compares types with == and their
+ * priority with integer compares. The primitive types have fixed IDs shared by
+ * all registries, class types get the next free ID of a registry when they are
+ * seen for the first time. Each program has its own registry (shared by the
+ * engine analyzing it and all its forks), so the class names are released
+ * together with the engines.<br>
+ * <br>
+ * An int forced by a comparison carries the FORCED flag. It has a higher
+ * priority than boolean, so that a comparison operand is never declared as
+ * boolean, but is declared as int. The symbol table stores the names of the
+ * types ("$forced$int" for a forced int).
+ */
+final class JackType {
+
+    /** No type has been derived. */
+    static final int UNKNOWN = 0;
+    static final int STRING = 1;
+    static final int ARRAY = 2;
+    static final int CHAR = 3;
+    static final int BOOLEAN = 4;
+    static final int INT = 5;
+    static final int VOID = 6;
+    private static final int FIRST_CLASS = 7;
+
+    /** Flag of a type forced by a comparison (only used with int). */
+    static final int FORCED = 1 << 30;
+    static final int FORCED_INT = INT | FORCED;
+    private static final String FORCED_INT_NAME = "$forced$int";
+
+    /**
+     * Priority of each primitive type by ID, a lower rank having a higher
+     * priority. Class types other than String and Array have the highest
+     * priority.
+     */
+    private static final int[] RANKS = { Integer.MAX_VALUE, 0, 1, 2, 4, 5, 6 };
+    private static final int FORCED_RANK = 3;
+    private static final int CLASS_RANK = -1;
+
+    private static final String[] BUILT_IN_NAMES = { null, "String", "Array", "char", "boolean", "int", "void" };
+    private static final Map<String, Integer> BUILT_IN_IDS = new HashMap<>();
+    static {
+        for (int type = STRING; type < FIRST_CLASS; type++) {
+            BUILT_IN_IDS.put(BUILT_IN_NAMES[type], type);
+        }
+        BUILT_IN_IDS.put(FORCED_INT_NAME, FORCED_INT);
+    }
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>(BUILT_IN_IDS);
+    private volatile String[] names = BUILT_IN_NAMES;
+
+    /**
+     * Creates a registry for the class types of a program.
+     */
+    JackType() {
+    }
+
+    /**
+     * Returns the ID of a type name, registering it as a class type if it hasn't
+     * been seen before.
+     *
+     * @param name The type name as stored in the symbol table or null.
+     * @return Returns the ID or UNKNOWN if the name is null.
+     */
+    int of(String name) {
+        if (name == null) {
+            return UNKNOWN;
+        }
+        Integer type = ids.get(name);
+        return type != null ? type : register(name);
+    }
+
+    private synchronized int register(String name) {
+        Integer type = ids.get(name);
+        if (type == null) {
+            String[] registered = Arrays.copyOf(names, names.length + 1);
+            type = names.length;
+            registered[type] = name;
+            names = registered; // published before the ID
+            ids.put(name, type);
+        }
+        return type;
+    }
+
+    /**
+     * Returns the name of a type as stored in the symbol table.
+     */
+    String name(int type) {
+        return type == FORCED_INT ? FORCED_INT_NAME : names[type];
+    }
+
+    /**
+     * Returns the name of a type as declared in Jack code (without the forced
+     * flag).
+     */
+    String declaredName(int type) {
+        return names[type & ~FORCED];
+    }
+
+    /**
+     * Returns the priority of a known type, a lower rank having a higher
+     * priority.
+     */
+    static int rank(int type) {
+        if ((type & FORCED) != 0) {
+            return FORCED_RANK;
+        }
+        return type < FIRST_CLASS ? RANKS[type] : CLASS_RANK;
+    }
+
+    /**
+     * Returns true if a known type overrides the current type of an entry, which
+     * is the case if the entry has no type yet or the type has a higher priority.
+     * A class type never overrides another class type.
+     */
+    static boolean overrides(int type, int currentType) {
+        return currentType == UNKNOWN || rank(type) < rank(currentType);
+    }
+
+    /**
+     * Returns the priority of a type name like rank(int), without registering
+     * a class type.
+     */
+    static int rank(String name) {
+        Integer type = BUILT_IN_IDS.get(name);
+        return type != null ? rank(type) : CLASS_RANK;
+    }
+
+    /**
+     * Compares two type names like overrides(int, int), without registering
+     * class types (i.e. while joining entries of the symbol table).
+     *
+     * @param type        The type name (not null).
+     * @param currentType The current type name of the entry or null.
+     */
+    static boolean overrides(String type, String currentType) {
+        return currentType == null || rank(type) < rank(currentType);
+    }
+}
@@ -0,0 +1,215 @@
+package io.github.axelkern.hack.decompiler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Streams generated Jack source code to a Writer. The indentation is derived
+ * from the braces of each line (outside of string literals) and consecutive
+ * blank lines are collapsed into one while writing.<br>
+ * <br>
+ * Lines are collected in a reusable buffer until flush() is called, since the
+ * names of the locals and args of a function are only known after the whole
+ * function has been decompiled. While flushing, generic variable names (i.e.
+ * local1) are replaced by their new names. Only complete identifiers are
+ * replaced (local1 doesn't match local12) and string literals are left
+ * untouched.<br>
+ * <br>
+ * Parts of the code (i.e. functions) can be generated concurrently by forked
+ * writers and joined in their original order afterwards.
+ */
+final class JackWriter {
+    private static final String INDENT = "    ";
+    private static final String NEW_LINE = System.lineSeparator();
+
+    private final Writer out; // null if the code is to be discarded
+    private final StringBuilder buffer = new StringBuilder();
+    private char[] chunk = new char[1024];
+    private Map<String, String> classNames = Map.of();
+    private int indentLevel;
+    private boolean lastBlank;
+
+    /**
+     * Creates a writer.
+     *
+     * @param out The target of the Jack code or null to discard all code (i.e.
+     *            while analyzing).
+     */
+    JackWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Creates a writer for a part of the code, which starts with the class names,
+     * indentation and blank line state of this writer.
+     *
+     * @param out The target of the part.
+     * @return Returns the forked writer.
+     */
+    JackWriter fork(Writer out) {
+        JackWriter part = new JackWriter(out);
+        part.classNames = classNames;
+        part.indentLevel = indentLevel;
+        part.lastBlank = lastBlank;
+        return part;
+    }
+
+    /**
+     * Writes the code of a forked writer after all pending lines and continues
+     * with the indentation and blank line state the fork ended with.
+     *
+     * @param part The forked writer (already flushed).
+     * @param code The code written by the forked writer.
+     */
+    void join(JackWriter part, String code) {
+        flush();
+        if (out != null) {
+            try {
+                out.write(code);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        indentLevel = part.indentLevel;
+        lastBlank = part.lastBlank;
+    }
+
+    /**
+     * Sets the new names of statics and fields, which are applied to all lines
+     * flushed afterwards.
+     *
+     * @param names Map from the generic variable name to the new name.
+     */
+    void setClassNames(Map<String, String> names) {
+        classNames = names;
+    }
+
+    /**
+     * Appends a line of code. Lines containing a closing brace are unindented,
+     * lines following an opening brace are indented. Braces in string literals
+     * are ignored.
+     */
+    void line(String code) {
+        if (containsBrace(code, '}')) {
+            indentLevel--;
+        }
+        if (containsBrace(code, '{')) {
+            indentLevel++;
+            if (out != null) {
+                append(code, indentLevel - 1);
+            }
+        } else if (out != null) {
+            append(code, indentLevel);
+        }
+    }
+
+    private static boolean containsBrace(String code, char brace) {
+        if (code.indexOf(brace) < 0) {
+            return false;
+        }
+        boolean literal = false; // Jack string literals can't contain quotes
+        for (int pos = 0; pos < code.length(); pos++) {
+            char c = code.charAt(pos);
+            if (c == '"') {
+                literal = !literal;
+            } else if (c == brace && !literal) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void append(String code, int indent) {
+        if (code.isEmpty()) {
+            if (lastBlank) {
+                return;
+            }
+            lastBlank = true;
+        } else {
+            lastBlank = false;
+            for (int i = 0; i < indent; i++) {
+                buffer.append(INDENT);
+            }
+        }
+        buffer.append(code).append(NEW_LINE);
+    }
+
+    /**
+     * Writes all pending lines, renaming statics and fields.
+     */
+    void flush() {
+        flush(Map.of());
+    }
+
+    /**
+     * Writes all pending lines, renaming locals and args as well as statics and
+     * fields.
+     *
+     * @param localNames Map from the generic variable name to the new name.
+     */
+    void flush(Map<String, String> localNames) {
+        if (out == null || buffer.isEmpty()) {
+            return;
+        }
+        try {
+            if (localNames.isEmpty() && classNames.isEmpty()) {
+                write(0, buffer.length());
+            } else {
+                rename(localNames);
+            }
+            buffer.setLength(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void rename(Map<String, String> localNames) throws IOException {
+        int written = 0; // end of the part of the buffer already written
+        int pos = 0;
+        int length = buffer.length();
+        while (pos < length) {
+            char c = buffer.charAt(pos);
+            if (c == '"') { // skip string literal
+                pos++;
+                while (pos < length && buffer.charAt(pos) != '"' && buffer.charAt(pos) != '\n') {
+                    pos++;
+                }
+                pos++;
+            } else if (Character.isLetter(c) || c == '_') {
+                int start = pos;
+                while (pos < length && (Character.isLetterOrDigit(buffer.charAt(pos)) || buffer.charAt(pos) == '_')) {
+                    pos++;
+                }
+                if (Character.isDigit(buffer.charAt(pos - 1))) { // generic names end with the slot number
+                    String identifier = buffer.substring(start, pos);
+                    String newName = localNames.get(identifier);
+                    if (newName == null) {
+                        newName = classNames.get(identifier);
+                    }
+                    if (newName != null) {
+                        write(written, start);
+                        out.write(newName);
+                        written = pos;
+                    }
+                }
+            } else if (Character.isDigit(c)) { // skip number (i.e. 1local isn't an identifier)
+                while (pos < length && Character.isLetterOrDigit(buffer.charAt(pos))) {
+                    pos++;
+                }
+            } else {
+                pos++;
+            }
+        }
+        write(written, length);
+    }
+
+    private void write(int start, int end) throws IOException {
+        if (end - start > chunk.length) {
+            chunk = new char[Math.max(end - start, chunk.length * 2)];
+        }
+        buffer.getChars(start, end, chunk, 0);
+        out.write(chunk, 0, end - start);
+    }
+}
@@ -0,0 +1,111 @@
+package io.github.axelkern.hack.decompiler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Entry point for embedding the decompiler. A ProgramDecompiler only holds its
+ * immutable options and is thread-safe: each call creates its own engine, which
+ * keeps all mutable state of the decompilation, so any number of calls with the
+ * same or different options can run concurrently. The declarations of the OS
+ * classes are loaded by the first call and shared by all calls.
+ */
+public final class ProgramDecompiler {
+    private final DecompilerOptions options;
+    private final PrintStream err; // target of the error messages of the engines
+
+    public ProgramDecompiler(DecompilerOptions options) {
+        this(options, System.err);
+    }
+
+    /**
+     * Creates a decompiler reporting errors in the VM code to the specified
+     * stream (i.e. the error output of a daemon request).
+     */
+    ProgramDecompiler(DecompilerOptions options, PrintStream err) {
+        if (options == null) {
+            throw new IllegalArgumentException("options must not be null");
+        }
+        this.options = options;
+        this.err = err;
+    }
+
+    public DecompilerOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Decompiles a program. All classes are analyzed together, so that types
+     * flow between the classes.
+     *
+     * @param classes The VM code of all classes of the program mapped by class
+     *                name.
+     * @return Returns the Jack source code of each class mapped by class name (in
+     *         the order of the input).
+     */
+    public Map<String, String> decompile(Map<String, List<String>> classes) {
+        Map<String, VmCode> vmClasses = new LinkedHashMap<>();
+        classes.forEach((className, source) -> vmClasses.put(className, VmCode.parse(source)));
+        DecompilationEngine decompiler = new DecompilationEngine(options, err);
+        decompiler.analyze(vmClasses);
+        Map<String, String> jackClasses = new LinkedHashMap<>();
+        vmClasses.forEach((className, source) -> {
+            StringWriter out = new StringWriter();
+            decompiler.fork().decompile(className, source, out);
+            jackClasses.put(className, out.toString());
+        });
+        return jackClasses;
+    }
+
+    /**
+     * Decompiles a single class.
+     *
+     * @param className The name of the class.
+     * @param source    The VM code of the class.
+     * @return Returns the Jack source code.
+     */
+    public String decompile(String className, List<String> source) {
+        return decompile(Map.of(className, source)).get(className);
+    }
+
+    /**
+     * Decompiles a stream of VM code containing any number of classes, i.e. all
+     * .vm files of a program concatenated. Classes are separated by their
+     * function commands. Each class is analyzed and decompiled as soon as the
+     * first function of the next class has been read, so only the VM code of a
+     * single class is kept in memory.<br>
+     * <br>
+     * Types only flow from the classes read so far to the current class, so the
+     * result can differ from decompiling the whole program at once. A class
+     * whose functions are not contiguous is passed to the sink once for each
+     * part.
+     *
+     * @param in   The VM code.
+     * @param sink Receives the class name and the Jack source code of each class
+     *             (in the order of the input).
+     * @return Returns the number of classes.
+     * @throws IOException If reading the input fails.
+     */
+    public int decompile(Reader in, BiConsumer<String, String> sink) throws IOException {
+        VmClassReader reader = new VmClassReader(in instanceof BufferedReader buffered ? buffered
+                : new BufferedReader(in));
+        DecompilationEngine decompiler = new DecompilationEngine(options, err);
+        int count = 0;
+        for (VmClassReader.VmClass vmClass = reader.next(); vmClass != null; vmClass = reader.next()) {
+            VmCode source = VmCode.parse(vmClass.source());
+            decompiler.analyze(Map.of(vmClass.className(), source));
+            StringWriter out = new StringWriter();
+            decompiler.fork().decompile(vmClass.className(), source, out);
+            sink.accept(vmClass.className(), out.toString());
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,47 @@
+package io.github.axelkern.hack.decompiler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The memory segments of the VM language. Each segment knows the prefix which
+ * is used by the decompiler to name the variables stored in it.
+ */
+enum Segment {
+    /* @formatter:off */
+    STATIC("static", "static"),
+    THIS("this", "field"),
+    LOCAL("local", "local"),
+    ARGUMENT("argument", "arg"),
+    CONSTANT("constant", ""),
+    TEMP("temp", "temp"),
+    POINTER("pointer", "pointer"),
+    THAT("that", null),
+
+    // Missing or invalid segment.
+    NONE(null, null);
+    /* @formatter:on */
+
+    private static final Map<String, Segment> segments;
+    static {
+        segments = new HashMap<>();
+        for (Segment s : Segment.values()) {
+            if (s.mnemonic != null) {
+                segments.put(s.mnemonic, s);
+            }
+        }
+    }
+
+    public final String mnemonic;
+    /** Variable name prefix or null if the segment doesn't map to variables. */
+    public final String varKind;
+
+    Segment(String mnemonic, String varKind) {
+        this.mnemonic = mnemonic;
+        this.varKind = varKind;
+    }
+
+    static Segment of(String mnemonic) {
+        return segments.getOrDefault(mnemonic, NONE);
+    }
+}
@@ -0,0 +1,11 @@
+package io.github.axelkern.hack.decompiler;
+
+/**
+ * Engines for recovering if and while statements from branching commands.
+ */
+public enum Structuring {
+    /** Matches label and goto patterns while decompiling line by line. */
+    PATTERN,
+    /** Uses the control flow graph, dominators and loop headers. */
+    CFG
+}
@@ -1,11 +1,32 @@
 package io.github.axelkern.hack.decompiler;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BinaryOperator;
 
 /**
- * Symbol table that stores simple <String, String> pairs, but offers some
- * specialized access methods to support the decompiler.<br>
+ * Symbol table that stores one record per class and one record per function.
+ * Statics, fields, locals and args are kept in arrays indexed by their slot
+ * number, while the other entries have dedicated fields.<br>
+ * <br>
+ * The engine addresses variables by their segment and slot and the other
+ * entries of a record by their Property. For the declaration reader the table
+ * still offers access via the original <String, String> key convention. Keys
+ * are parsed without allocating any strings.<br>
  * <br>
  * Key convention:<br>
  * statics, fields: className$varName<br>
@@ -13,79 +34,716 @@ import java.util.Map;
  * function call types: functionName$TYPE<br>
  * locals, args: functionName$varName<br>
  * number of statics, fields: className$STATICS, className$FIELDS number of
- * locals, args: functionName$LOCALS, functionName$ARGS
+ * locals, args: functionName$LOCALS, functionName$ARGS<br>
+ * names and documentation: key$NAME, key$DOC (className$functionName$DOC for
+ * functions)<br>
+ * <br>
+ * A symbol table can be layered on top of a parent table. Lookups fall back to
+ * the parent, while all additions are stored in the layer itself, so the parent
+ * can safely be shared by several threads as long as it isn't modified.<br>
+ * <br>
+ * If enabled, the table keeps track of the classes whose entries have been
+ * changed (the owner of functionName$... entries is the class of the function).<br>
+ * <br>
+ * A layer can be read and updated by several threads at the same time. Updates
+ * are lock-free: each entry is replaced with a single compare-and-set (arrays
+ * of slots are copied on write), which is repeated if another thread has
+ * changed the entry in the meantime. join() computes the new value from the
+ * current one, so concurrent updates moving a type up the type hierarchy never
+ * get lost.<br>
+ * <br>
+ * A table can be written to a binary snapshot. A table read from a snapshot is
+ * read-only and only decodes the record of a class or function when it is
+ * referenced for the first time, which is safe even if several threads share
+ * the table.
  */
 class SymbolTable {
-    private Map<String, String> table = new HashMap<>();
 
-    boolean contains(String key1, String key2) {
-        return get(key1, key2) != null;
+    /**
+     * The attributes stored for each variable.
+     */
+    enum Attribute {
+        TYPE, NAME, DOC
+    }
+
+    /**
+     * Dedicated entries of a class or function record (the order is part of the
+     * snapshot format).
+     */
+    enum Property {
+        DOC, STATICS, FIELDS, LOCALS, ARGS, TYPE, RETURN
     }
 
-    boolean contains(String className, String functionName, String identifier) {
-        return contains(getPrimaryKey(className, functionName, identifier), identifier);
+    private static final int NUM_PROPERTIES = Property.values().length;
+
+    /** Header of a snapshot ("JDEF" and the format version). */
+    private static final int SNAPSHOT_MAGIC = 0x4A444546;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /** Atomic access to the elements of the arrays of records. */
+    private static final VarHandle PROPERTY = MethodHandles.arrayElementVarHandle(String[].class);
+    private static final VarHandle COLUMN = MethodHandles.arrayElementVarHandle(String[][].class);
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Slots[].class);
+    private static final VarHandle OTHER;
+    static {
+        try {
+            OTHER = MethodHandles.lookup().findVarHandle(Scope.class, "other", Map.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Variables of one kind (i.e. locals), indexed by slot number. A published
+     * column is never modified, it is replaced by an updated copy.
+     */
+    private static final class Slots {
+        private final String[][] values = new String[Attribute.values().length][];
+
+        String get(int slot, Attribute attribute) {
+            String[] column = (String[]) COLUMN.getAcquire(values, attribute.ordinal());
+            return column != null && slot < column.length ? column[slot] : null;
+        }
+
+        boolean compareAndSet(int slot, Attribute attribute, String expected, String value) {
+            while (true) {
+                String[] column = (String[]) COLUMN.getAcquire(values, attribute.ordinal());
+                String current = column != null && slot < column.length ? column[slot] : null;
+                if (current != expected) {
+                    return false;
+                }
+                String[] updated = column == null ? new String[Math.max(4, slot + 1)]
+                        : Arrays.copyOf(column, Math.max(slot + 1, column.length));
+                updated[slot] = value;
+                if (COLUMN.compareAndSet(values, attribute.ordinal(), column, updated)) {
+                    return true;
+                }
+            }
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            for (String[] column : values) {
+                int length = column != null ? column.length : 0;
+                while (length > 0 && column[length - 1] == null) {
+                    length--;
+                }
+                out.writeShort(length);
+                for (int slot = 0; slot < length; slot++) {
+                    writeString(out, column[slot]);
+                }
+            }
+        }
+
+        long fingerprint() {
+            long hash = 0;
+            for (String[] column : values) {
+                if (column != null) {
+                    for (int slot = 0; slot < column.length; slot++) {
+                        hash = hash * 1000003 + (column[slot] != null ? column[slot].hashCode() * 31L + slot : 0);
+                    }
+                }
+                hash = hash * 1000003 + 1;
+            }
+            return hash;
+        }
+
+        int count() {
+            int count = 0;
+            for (String[] column : values) {
+                if (column != null) {
+                    for (String value : column) {
+                        count += value != null ? 1 : 0;
+                    }
+                }
+            }
+            return count;
+        }
+
+        static Slots read(DataInputStream in) throws IOException {
+            Slots slots = new Slots();
+            for (int attribute = 0; attribute < slots.values.length; attribute++) {
+                int length = in.readUnsignedShort();
+                if (length > 0) {
+                    String[] column = new String[length];
+                    for (int slot = 0; slot < length; slot++) {
+                        column[slot] = readString(in);
+                    }
+                    slots.values[attribute] = column;
+                }
+            }
+            return slots;
+        }
+    }
+
+    /**
+     * All entries of a class or a function.
+     */
+    private static final class Scope {
+        private final String[] properties = new String[NUM_PROPERTIES];
+        private final Slots[] variables = new Slots[Segment.values().length];
+        private Map<String, String> other; // anything else (i.e. temp0, this)
+
+        String get(int property) {
+            return (String) PROPERTY.getAcquire(properties, property);
+        }
+
+        boolean compareAndSet(int property, String expected, String value) {
+            return PROPERTY.compareAndSet(properties, property, expected, value);
+        }
+
+        String get(Segment segment, int slot, Attribute attribute) {
+            Slots slots = (Slots) SLOTS.getAcquire(variables, segment.ordinal());
+            return slots != null ? slots.get(slot, attribute) : null;
+        }
+
+        boolean compareAndSet(Segment segment, int slot, Attribute attribute, String expected, String value) {
+            Slots slots = (Slots) SLOTS.getAcquire(variables, segment.ordinal());
+            if (slots == null) {
+                SLOTS.compareAndSet(variables, segment.ordinal(), null, new Slots());
+                slots = (Slots) SLOTS.getAcquire(variables, segment.ordinal());
+            }
+            return slots.compareAndSet(slot, attribute, expected, value);
+        }
+
+        @SuppressWarnings("unchecked")
+        String getOther(String key) {
+            Map<String, String> map = (Map<String, String>) OTHER.getAcquire(this);
+            return map != null ? map.get(key) : null;
+        }
+
+        @SuppressWarnings("unchecked")
+        boolean compareAndSetOther(String key, String expected, String value) {
+            Map<String, String> map = (Map<String, String>) OTHER.getAcquire(this);
+            if (map == null) {
+                OTHER.compareAndSet(this, null, new ConcurrentHashMap<>());
+                map = (Map<String, String>) OTHER.getAcquire(this);
+            }
+            return expected == null ? map.putIfAbsent(key, value) == null : map.replace(key, expected, value);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            for (String property : properties) {
+                writeString(out, property);
+            }
+            int segments = 0;
+            for (Slots slots : variables) {
+                segments += slots != null ? 1 : 0;
+            }
+            out.writeByte(segments);
+            for (int segment = 0; segment < variables.length; segment++) {
+                if (variables[segment] != null) {
+                    out.writeByte(segment);
+                    variables[segment].write(out);
+                }
+            }
+            out.writeShort(other != null ? other.size() : 0);
+            if (other != null) {
+                for (Map.Entry<String, String> entry : new TreeMap<>(other).entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(entry.getValue());
+                }
+            }
+        }
+
+        long fingerprint() {
+            long hash = 0;
+            for (String property : properties) {
+                hash = hash * 1000003 + (property != null ? property.hashCode() : 0);
+            }
+            for (Slots slots : variables) {
+                hash = hash * 1000003 + (slots != null ? slots.fingerprint() : 0);
+            }
+            if (other != null) {
+                long otherHash = 0;
+                for (Map.Entry<String, String> entry : other.entrySet()) { // independent of the order
+                    otherHash += mix(entry.getKey().hashCode() * 1000003L + entry.getValue().hashCode());
+                }
+                hash = hash * 1000003 + otherHash;
+            }
+            return hash;
+        }
+
+        int count() {
+            int count = other != null ? other.size() : 0;
+            for (String property : properties) {
+                count += property != null ? 1 : 0;
+            }
+            for (Slots slots : variables) {
+                count += slots != null ? slots.count() : 0;
+            }
+            return count;
+        }
+
+        static Scope read(DataInputStream in) throws IOException {
+            Scope scope = new Scope();
+            for (int property = 0; property < NUM_PROPERTIES; property++) {
+                scope.properties[property] = readString(in);
+            }
+            for (int segments = in.readUnsignedByte(); segments > 0; segments--) {
+                scope.variables[in.readUnsignedByte()] = Slots.read(in);
+            }
+            for (int entries = in.readUnsignedShort(); entries > 0; entries--) {
+                scope.compareAndSetOther(in.readUTF(), null, in.readUTF());
+            }
+            return scope;
+        }
+    }
+
+    /**
+     * An entry of a record.
+     *
+     * @param scope     The record.
+     * @param property  The dedicated entry or -1.
+     * @param segment   The segment of a variable or null.
+     * @param slot      The slot of a variable or -1.
+     * @param attribute The attribute of a variable or null.
+     * @param key       The key of any other entry or null.
+     */
+    private record Location(Scope scope, int property, Segment segment, int slot, Attribute attribute, String key) {
+        String get() {
+            if (property >= 0) {
+                return scope.get(property);
+            }
+            return slot >= 0 ? scope.get(segment, slot, attribute) : scope.getOther(key);
+        }
+
+        boolean compareAndSet(String expected, String value) {
+            if (property >= 0) {
+                return scope.compareAndSet(property, expected, value);
+            }
+            return slot >= 0 ? scope.compareAndSet(segment, slot, attribute, expected, value)
+                    : scope.compareAndSetOther(key, expected, value);
+        }
+    }
+
+    private final SymbolTable parent;
+    private final Map<String, Scope> classes;
+    private final Map<String, Scope> functions;
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile Set<String> changedOwners; // null if changes aren't tracked
+    private final byte[] snapshot; // null if the table isn't read from a snapshot
+    private final Map<String, Integer> snapshotIndex; // position of each record in the snapshot
+
+    SymbolTable() {
+        this(null);
+    }
+
+    SymbolTable(SymbolTable parent) {
+        this.parent = parent;
+        classes = new ConcurrentHashMap<>();
+        functions = new ConcurrentHashMap<>();
+        snapshot = null;
+        snapshotIndex = null;
+    }
+
+    private SymbolTable(byte[] snapshot, Map<String, Integer> snapshotIndex, int size) {
+        parent = null;
+        classes = new ConcurrentHashMap<>();
+        functions = new ConcurrentHashMap<>();
+        this.snapshot = snapshot;
+        this.snapshotIndex = snapshotIndex;
+        this.size.set(size);
     }
 
     String get(String key1, String key2) {
-        if (table.containsKey(key1 + "$" + key2)) {
-            return table.get(key1 + "$" + key2);
+        Location location = locate(key1, key2, false);
+        String result = location != null ? location.get() : null;
+        if (result == null && parent != null) {
+            return parent.get(key1, key2);
         } else {
-            return null;
+            return result;
         }
     }
 
-    String get(String className, String functionName, String identifier) {
-        return get(getPrimaryKey(className, functionName, identifier), identifier);
+    /**
+     * Returns a dedicated entry of a class or function.
+     *
+     * @param owner    Name of the class or function (containing a dot).
+     * @param property The entry to be returned.
+     * @return Returns the value or null if there is no such entry.
+     */
+    String get(String owner, Property property) {
+        Scope scope = findScope(owner.indexOf('.') >= 0 ? functions : classes, owner);
+        String result = scope != null ? scope.get(property.ordinal()) : null;
+        if (result == null && parent != null) {
+            return parent.get(owner, property);
+        } else {
+            return result;
+        }
     }
 
     /**
-     * Same as get() but will return "" instead of null if no entry matching was
-     * found.
+     * Returns an attribute of the variable in the specified segment and slot.
+     *
+     * @param className    Name of the current class (for static, this and
+     *                     pointer).
+     * @param functionName Name of the current function (for all other segments).
+     * @param segment      The segment of the variable.
+     * @param slot         The index of the variable in the segment.
+     * @param attribute    The attribute to be returned.
+     * @return Returns the value or null if there is no such entry.
      */
-    String find(String key1, String key2) {
-        String result = get(key1, key2);
-        if (result == null) {
-            return "";
+    String get(String className, String functionName, Segment segment, int slot, Attribute attribute) {
+        Scope scope = isClassSegment(segment) ? findScope(classes, className) : findScope(functions, functionName);
+        String result = scope != null ? scope.get(segment, slot, attribute) : null;
+        if (result == null && parent != null) {
+            return parent.get(className, functionName, segment, slot, attribute);
         } else {
             return result;
         }
     }
 
+    void add(String key1, String key2, String value) {
+        assert value != null && snapshot == null;
+        // a change is only tracked if the value differs from the one inherited from the parent
+        String previous = changedOwners != null && parent != null ? get(key1, key2) : null;
+        Location location = locate(key1, key2, true);
+        String oldValue;
+        do {
+            oldValue = location.get();
+        } while (!location.compareAndSet(oldValue, value));
+        if (oldValue == null) {
+            size.incrementAndGet();
+        } else {
+            previous = oldValue;
+        }
+        if (!value.equals(previous)) {
+            trackChange(key1);
+        }
+    }
+
     /**
-     * Same as get() but will return "" instead of null if no entry matching was
-     * found.
+     * Joins a value into a dedicated entry of a class or function. The entry is
+     * set to join(current, value), where current is the value of this layer or
+     * else of the parent (null if there is none). Nothing is stored if the result
+     * equals the current value.
+     *
+     * @param owner    Name of the class or function (containing a dot).
+     * @param property The entry to be updated.
+     * @param value    The value to be joined.
+     * @param join     Returns the new value of an entry from the current value
+     *                 (or null) and the value to be joined. It must not have side
+     *                 effects, since it is applied again if another thread has
+     *                 changed the entry in the meantime.
+     * @return Returns true if the entry has been changed.
      */
-    String find(String className, String functionName, String identifier) {
-        return find(getPrimaryKey(className, functionName, identifier), identifier);
+    boolean join(String owner, Property property, String value, BinaryOperator<String> join) {
+        Scope scope = findScope(owner.indexOf('.') >= 0 ? functions : classes, owner, true);
+        return join(new Location(scope, property.ordinal(), null, -1, null, null), owner,
+                parent != null ? parent.get(owner, property) : null, value, join);
     }
 
-    void add(String key1, String key2, String value) {
-        table.put(key1 + "$" + key2, value);
+    /**
+     * Joins a value into an attribute of the variable in the specified segment
+     * and slot (see join(String, Property, String, BinaryOperator)).
+     */
+    boolean join(String className, String functionName, Segment segment, int slot, Attribute attribute,
+            String value, BinaryOperator<String> join) {
+        String owner = isClassSegment(segment) ? className : functionName;
+        Scope scope = findScope(isClassSegment(segment) ? classes : functions, owner, true);
+        return join(new Location(scope, -1, segment, slot, attribute, null), owner,
+                parent != null ? parent.get(className, functionName, segment, slot, attribute) : null, value, join);
+    }
+
+    /**
+     * Joins a value into an entry of this layer.
+     *
+     * @param inherited The value of the entry in the parent or null.
+     */
+    private boolean join(Location location, String owner, String inherited, String value,
+            BinaryOperator<String> join) {
+        assert value != null && snapshot == null;
+        while (true) {
+            String current = location.get();
+            String previous = current != null ? current : inherited;
+            String joined = join.apply(previous, value);
+            if (joined == null || joined.equals(previous)) {
+                return false;
+            }
+            if (location.compareAndSet(current, joined)) {
+                if (current == null) {
+                    size.incrementAndGet();
+                }
+                trackChange(owner);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Checks if the variables of a segment belong to the class record (pointer 0
+     * is this, which is the same in all functions of a class).
+     */
+    private static boolean isClassSegment(Segment segment) {
+        return segment == Segment.STATIC || segment == Segment.THIS || segment == Segment.POINTER;
     }
 
-    void add(String className, String functionName, String identifier, String value) {
-        add(getPrimaryKey(className, functionName, identifier), identifier, value);
+    private void trackChange(String key1) {
+        Set<String> owners = changedOwners;
+        if (owners != null) {
+            int pos = key1.indexOf('.');
+            owners.add(pos < 0 ? key1 : key1.substring(0, pos));
+        }
     }
 
     /**
-     * Selects the correct primary key depending on the identifier
-     * 
-     * @param className    Name of the current class
-     * @param functionName Name of the current function
-     * @param identifier   Variable name or entry name (i.e. static2 or FIELDS)
-     * @return Returns the primary key under which the entries for the specified
-     *         identifier are stored.
+     * Removes all entries of a class and its functions from this layer, so that
+     * lookups fall back to the parent again.
+     *
+     * @param className The name of the class.
      */
-    private static String getPrimaryKey(String className, String functionName, String identifier) {
-        identifier = identifier.toUpperCase();
-        if (identifier.startsWith("STATIC") || identifier.startsWith("FIELD") || identifier.startsWith("THIS")) {
-            return className;
+    void remove(String className) {
+        assert snapshot == null;
+        boolean removed = false;
+        Scope scope = classes.remove(className);
+        if (scope != null) {
+            size.addAndGet(-scope.count());
+            removed = true;
+        }
+        String prefix = className + ".";
+        for (Iterator<Map.Entry<String, Scope>> it = functions.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Scope> function = it.next();
+            if (function.getKey().startsWith(prefix)) {
+                size.addAndGet(-function.getValue().count());
+                it.remove();
+                removed = true;
+            }
+        }
+        if (removed && changedOwners != null) {
+            changedOwners.add(className);
+        }
+    }
+
+    /**
+     * Locates the entry identified by the two keys.
+     *
+     * @param key1   Name of a class or function.
+     * @param key2   Variable name or entry name (i.e. static2, arg0$NAME or FIELDS).
+     * @param create Whether to create the record if it doesn't exist.
+     * @return Returns the entry or null if there is no such record.
+     */
+    private Location locate(String key1, String key2, boolean create) {
+        int end = key2.length();
+        Attribute attribute = Attribute.TYPE;
+        if (key2.endsWith("$NAME")) {
+            attribute = Attribute.NAME;
+            end -= 5;
+        } else if (key2.endsWith("$DOC")) {
+            attribute = Attribute.DOC;
+            end -= 4;
+            if (end != key1.length() || !key2.startsWith(key1)) { // not the documentation of key1 itself
+                int dot = key2.lastIndexOf('.', end);
+                if (dot >= 0) { // className$functionName$DOC
+                    Scope scope = findScope(functions, key2.substring(0, end), create);
+                    return scope != null ? new Location(scope, Property.DOC.ordinal(), null, -1, null, null) : null;
+                }
+            }
+        }
+        Scope scope = findScope(key1.indexOf('.') >= 0 ? functions : classes, key1, create);
+        if (scope == null) {
+            return null;
+        }
+        Segment segment = null;
+        int slot = -1;
+        if (key2.startsWith("static")) {
+            segment = Segment.STATIC;
+            slot = parseSlot(key2, 6, end);
+        } else if (key2.startsWith("field")) {
+            segment = Segment.THIS;
+            slot = parseSlot(key2, 5, end);
+        } else if (key2.startsWith("local")) {
+            segment = Segment.LOCAL;
+            slot = parseSlot(key2, 5, end);
+        } else if (key2.startsWith("arg")) {
+            segment = Segment.ARGUMENT;
+            slot = parseSlot(key2, 3, end);
+        }
+        if (slot >= 0) {
+            return new Location(scope, -1, segment, slot, attribute, null);
+        }
+        Property property;
+        if (attribute == Attribute.DOC && end == key1.length() && key2.startsWith(key1)) {
+            property = Property.DOC;
         } else {
-            return functionName;
+            property = switch (key2) {
+            case "STATICS" -> Property.STATICS;
+            case "FIELDS" -> Property.FIELDS;
+            case "LOCALS" -> Property.LOCALS;
+            case "ARGS" -> Property.ARGS;
+            case "TYPE" -> Property.TYPE;
+            case "RETURN" -> Property.RETURN;
+            default -> null;
+            };
         }
+        return property != null ? new Location(scope, property.ordinal(), null, -1, null, null)
+                : new Location(scope, -1, null, -1, null, key2);
     }
 
+    private Scope findScope(Map<String, Scope> scopes, String key, boolean create) {
+        return create ? scopes.computeIfAbsent(key, k -> new Scope()) : findScope(scopes, key);
+    }
+
+    /**
+     * Returns the record of a class or function, decoding it from the snapshot if
+     * it is referenced for the first time.
+     *
+     * @return Returns the record or null if there is none.
+     */
+    private Scope findScope(Map<String, Scope> scopes, String key) {
+        Scope scope = scopes.get(key);
+        if (scope == null && snapshot != null) {
+            Integer pos = snapshotIndex.get(key);
+            if (pos != null) {
+                scope = scopes.computeIfAbsent(key, k -> {
+                    try {
+                        return Scope.read(new DataInputStream(
+                                new ByteArrayInputStream(snapshot, pos, snapshot.length - pos)));
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Corrupt snapshot entry " + key, e);
+                    }
+                });
+            }
+        }
+        return scope;
+    }
+
+    /**
+     * Returns a fingerprint of the entries of each class (including the entries
+     * of its functions) stored in this layer (excluding the parent). If the
+     * fingerprint of a class is equal for two tables, its entries are equal with
+     * a very high probability.
+     *
+     * @return Returns the fingerprint of each class with entries in this layer.
+     */
+    Map<String, Long> getFingerprints() {
+        Map<String, Long> result = new HashMap<>();
+        // scopes are combined by addition, so that the order of the maps doesn't matter
+        classes.forEach((key, scope) -> result.merge(key, mix(key.hashCode() + mix(scope.fingerprint())), Long::sum));
+        functions.forEach((key, scope) -> {
+            int pos = key.indexOf('.');
+            result.merge(key.substring(0, pos), mix(key.hashCode() + mix(scope.fingerprint())), Long::sum);
+        });
+        return result;
+    }
+
+    /**
+     * Spreads the bits of a hash value (finalizer of SplitMix64).
+     */
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+
+    /**
+     * Writes all entries of this layer (excluding the parent) to a binary
+     * snapshot, which can be read by readSnapshot().
+     *
+     * @param out The target of the snapshot.
+     * @throws IOException If writing fails.
+     */
+    void writeSnapshot(DataOutputStream out) throws IOException {
+        assert snapshot == null;
+        // encode all records first, so that the index can be written in front of them
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(records);
+        Map<String, Integer> index = new TreeMap<>(); // sorted, so that the build is reproducible
+        for (Map<String, Scope> scopes : List.of(classes, functions)) {
+            for (Map.Entry<String, Scope> entry : new TreeMap<>(scopes).entrySet()) {
+                index.put(entry.getKey(), recordOut.size());
+                entry.getValue().write(recordOut);
+            }
+        }
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeInt(size.get());
+        out.writeInt(index.size());
+        for (Map.Entry<String, Integer> entry : index.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+        records.writeTo(out);
+    }
+
+    /**
+     * Reads a snapshot written by writeSnapshot(). Only the index is decoded
+     * immediately, the records of classes and functions are decoded on first
+     * access.
+     *
+     * @param data The snapshot.
+     * @return Returns a read-only table.
+     * @throws IOException If the data is no valid snapshot.
+     */
+    static SymbolTable readSnapshot(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+            throw new IOException("Invalid snapshot");
+        }
+        int size = in.readInt();
+        int numRecords = in.readInt();
+        Map<String, Integer> index = new HashMap<>(numRecords * 2);
+        for (int i = 0; i < numRecords; i++) {
+            index.put(in.readUTF(), in.readInt());
+        }
+        int recordStart = data.length - in.available();
+        index.replaceAll((key, pos) -> pos + recordStart);
+        return new SymbolTable(data, index, size);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Parses the slot number at the end of a variable name.
+     *
+     * @return Returns the slot number or -1 if the characters between start and
+     *         end are not a plain decimal number.
+     */
+    private static int parseSlot(String s, int start, int end) {
+        if (start >= end || end - start > 9 || (s.charAt(start) == '0' && end - start > 1)) {
+            return -1;
+        }
+        int slot = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            slot = slot * 10 + (c - '0');
+        }
+        return slot;
+    }
+
+    /**
+     * Enables or disables tracking of changed entries.
+     */
+    void trackChanges(boolean enable) {
+        changedOwners = enable ? ConcurrentHashMap.newKeySet() : null;
+    }
+
+    /**
+     * Returns the names of all classes whose entries (including the entries of
+     * their functions) have been changed since the last call and resets the
+     * tracking.
+     */
+    Set<String> takeChanges() {
+        Set<String> result = changedOwners;
+        changedOwners = ConcurrentHashMap.newKeySet();
+        return result;
+    }
+
+    /**
+     * Returns the number of entries stored in this layer (excluding the parent).
+     */
     int size() {
-        return table.size();
+        return size.get();
     }
 }
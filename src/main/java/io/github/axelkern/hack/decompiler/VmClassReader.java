@@ -0,0 +1,79 @@
+package io.github.axelkern.hack.decompiler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a stream of VM code containing any number of classes into classes.
+ * A class starts with its first function command and ends before the first
+ * function of another class, so only the lines of the current class are kept
+ * in memory. Lines before the first function belong to the first class.
+ */
+final class VmClassReader {
+
+    /**
+     * The lines of a single class.
+     *
+     * @param className The class name taken from the function names.
+     * @param source    The lines of VM code.
+     */
+    record VmClass(String className, List<String> source) {
+    }
+
+    private final BufferedReader in;
+    private final String[] words = new String[3];
+    private List<String> lines = new ArrayList<>();
+    private String className; // of the function read last
+    private boolean eof;
+
+    VmClassReader(BufferedReader in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next class.
+     *
+     * @return Returns the class or null at the end of the input.
+     */
+    VmClass next() throws IOException {
+        while (!eof) {
+            String line = in.readLine();
+            if (line == null) {
+                eof = true;
+                break;
+            }
+            String lineClassName = getClassName(line);
+            if (lineClassName != null && className != null && !lineClassName.equals(className)) {
+                VmClass vmClass = new VmClass(className, lines);
+                className = lineClassName;
+                lines = new ArrayList<>();
+                lines.add(line);
+                return vmClass;
+            }
+            if (lineClassName != null) {
+                className = lineClassName;
+            }
+            lines.add(line);
+        }
+        if (className == null) { // no (further) function
+            return null;
+        }
+        VmClass vmClass = new VmClass(className, lines);
+        className = null;
+        lines = new ArrayList<>();
+        return vmClass;
+    }
+
+    /**
+     * Returns the class name of a function command or null for other lines.
+     */
+    private String getClassName(String line) {
+        if (VmCode.split(line, words) < 2 || Command.of(words[0]) != Command.FUNCTION) {
+            return null;
+        }
+        int dot = words[1].indexOf('.');
+        return dot >= 0 ? words[1].substring(0, dot) : words[1];
+    }
+}
@@ -0,0 +1,222 @@
+package io.github.axelkern.hack.decompiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pre-parsed VM code of a single class. Each VM command is parsed once into an
+ * Instruction, so the decompiler never has to split text lines again. Empty
+ * lines and comments are dropped while parsing.<br>
+ * <br>
+ * While parsing, an index of the control flow is built for each function, so
+ * that the end of a function, the position of a label and the last goto
+ * jumping to a label can be looked up in constant time. As defined by the VM
+ * language, labels are only visible inside the function they are declared in.
+ */
+final class VmCode {
+
+    /**
+     * A single parsed VM command.
+     *
+     * @param command The command.
+     * @param segment The memory segment of push/pop commands or NONE.
+     * @param target  The (interned) function or label name of function, call and
+     *                branching commands, the words of an invalid command (kept for
+     *                error messages) or null.
+     * @param index   The index of push/pop or the number of arguments/locals of
+     *                call/function commands (0 if missing).
+     */
+    record Instruction(Command command, Segment segment, String target, int index) {
+
+        boolean is(Command command, Segment segment, int index) {
+            return this.command == command && this.segment == segment && this.index == index;
+        }
+
+        /**
+         * Returns the command as written in VM code (without comments).
+         */
+        @Override
+        public String toString() {
+            if (command == Command.UNKNOWN || (segment == Segment.NONE && target != null
+                    && (command == Command.PUSH || command == Command.POP))) {
+                return target; // invalid command
+            }
+            return switch (command) {
+            case PUSH, POP -> command.mnemonic + " " + segment.mnemonic + " " + index;
+            case LABEL, GOTO, IF_GOTO -> command.mnemonic + " " + target;
+            case FUNCTION, CALL -> command.mnemonic + " " + target + " " + index;
+            default -> command.mnemonic;
+            };
+        }
+    }
+
+    private final Instruction[] instructions;
+    private final int[] functionEnd; // position of the next function command
+    private final int[] labelPos; // position of the label referred to by label/goto/if-goto or -1
+    private final int[] lastGoto; // position of the last goto jumping to a label or -1
+
+    private VmCode(Instruction[] instructions) {
+        this.instructions = instructions;
+        functionEnd = new int[instructions.length];
+        labelPos = new int[instructions.length];
+        lastGoto = new int[instructions.length];
+        Map<String, Integer> labels = new HashMap<>();
+        int end = instructions.length;
+        for (int line = instructions.length - 1; line >= 0; line--) {
+            functionEnd[line] = end;
+            if (instructions[line].command == Command.FUNCTION) {
+                end = line;
+            }
+        }
+        for (int start = 0; start < instructions.length; start = functionEnd[start]) {
+            labels.clear();
+            for (int line = start; line < functionEnd[start]; line++) {
+                if (instructions[line].command == Command.LABEL) {
+                    labels.putIfAbsent(instructions[line].target, line);
+                }
+            }
+            for (int line = start; line < functionEnd[start]; line++) {
+                lastGoto[line] = -1;
+                Command command = instructions[line].command;
+                if (command == Command.LABEL || command == Command.GOTO || command == Command.IF_GOTO) {
+                    labelPos[line] = labels.getOrDefault(instructions[line].target, -1);
+                    if (command == Command.GOTO && labelPos[line] >= 0) {
+                        lastGoto[labelPos[line]] = line;
+                    }
+                } else {
+                    labelPos[line] = -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses the specified VM source code.
+     *
+     * @param source The lines of VM code.
+     * @return Returns the parsed VM code.
+     */
+    static VmCode parse(List<String> source) {
+        List<Instruction> instructions = new ArrayList<>(source.size());
+        String[] words = new String[3];
+        for (String line : source) {
+            int count = split(line, words);
+            if (count > 0) {
+                instructions.add(parseInstruction(words, count));
+            }
+        }
+        return new VmCode(instructions.toArray(new Instruction[0]));
+    }
+
+    private static Instruction parseInstruction(String[] words, int count) {
+        Command command = Command.of(words[0]);
+        Segment segment = Segment.NONE;
+        String target = null;
+        int index = 0;
+        if (count > 1) {
+            if (command == Command.PUSH || command == Command.POP) {
+                segment = Segment.of(words[1]);
+            } else if (command != Command.UNKNOWN) {
+                target = words[1].intern();
+            }
+        }
+        if (command == Command.UNKNOWN || (count > 1 && segment == Segment.NONE
+                && (command == Command.PUSH || command == Command.POP))) {
+            target = String.join(" ", Arrays.asList(words).subList(0, count));
+        }
+        if (count > 2) {
+            try {
+                index = Integer.parseInt(words[2]);
+            } catch (NumberFormatException e) {
+                index = 0;
+            }
+        }
+        return new Instruction(command, segment, target, index);
+    }
+
+    /**
+     * Splits a line into up to three words, ignoring whitespace and comments.
+     *
+     * @return Returns the number of words found.
+     */
+    static int split(String line, String[] words) {
+        int end = line.indexOf("//");
+        if (end < 0) {
+            end = line.length();
+        }
+        int count = 0;
+        int pos = 0;
+        while (count < words.length) {
+            while (pos < end && Character.isWhitespace(line.charAt(pos))) {
+                pos++;
+            }
+            if (pos >= end) {
+                break;
+            }
+            int start = pos;
+            while (pos < end && !Character.isWhitespace(line.charAt(pos))) {
+                pos++;
+            }
+            words[count++] = line.substring(start, pos);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the names of all classes whose functions are called by this code.
+     */
+    Set<String> getCalledClasses() {
+        Set<String> classes = new HashSet<>();
+        for (Instruction instruction : instructions) {
+            if (instruction.command == Command.CALL && instruction.target != null) {
+                int pos = instruction.target.indexOf('.');
+                classes.add(pos < 0 ? instruction.target : instruction.target.substring(0, pos));
+            }
+        }
+        return classes;
+    }
+
+    Instruction get(int line) {
+        return instructions[line];
+    }
+
+    int size() {
+        return instructions.length;
+    }
+
+    /**
+     * Returns the end of the function containing the specified position.
+     *
+     * @return Returns the position of the next function command or size() if
+     *         there is none.
+     */
+    int getFunctionEnd(int line) {
+        return functionEnd[line];
+    }
+
+    /**
+     * Returns the position of the label a label, goto or if-goto command refers
+     * to.
+     *
+     * @return Returns the position of the label or -1 if the command isn't a
+     *         branching command or the label doesn't exist in the function.
+     */
+    int getLabelPos(int line) {
+        return labelPos[line];
+    }
+
+    /**
+     * Returns the position of the last goto command inside the function that jumps
+     * to the label at the specified position.
+     *
+     * @return Returns the position of the goto or -1 if there is none.
+     */
+    int getLastGoto(int line) {
+        return lastGoto[line];
+    }
+}
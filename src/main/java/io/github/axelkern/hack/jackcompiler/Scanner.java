@@ -3,25 +3,62 @@ package io.github.axelkern.hack.jackcompiler;
 import static io.github.axelkern.hack.jackcompiler.TokenType.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Splits Jack source code into tokens.<br>
+ * <br>
+ * Tokens are only positions in the source: the lexeme, the literal and the
+ * comments belonging to a token are extracted when they are requested. The
+ * tokens can either be pulled one at a time with nextToken() and the
+ * accessors of the current token, which allocates nothing per token, or be
+ * collected into a list with scanTokens().
+ */
 public class Scanner {
-    public record Token(TokenType type, String lexeme, Object literal, String annotation, String doc, int line,
-            int column) {
+    /**
+     * A token referring to its position in the source. The annotation and
+     * documentation comments preceding the token are referred to by their start
+     * and end position (-1 if there is none).
+     */
+    public record Token(String source, TokenType type, int start, int end, int annotationStart,
+            int annotationEnd, int docStart, int docEnd, int line, int column) {
+
+        public String lexeme() {
+            return source.substring(start, end);
+        }
+
+        /**
+         * Returns the value of a number (Integer) or string (String) or null.
+         */
+        public Object literal() {
+            return Scanner.literal(source, type, start, end);
+        }
+
+        public String annotation() {
+            return annotationStart < 0 ? null : source.substring(annotationStart, annotationEnd);
+        }
+
+        public String doc() {
+            return docStart < 0 ? null : source.substring(docStart, docEnd);
+        }
+
         @Override
         public String toString() {
-            return type + " " + lexeme + " " + literal;
+            return type + " " + lexeme() + " " + literal();
         }
     }
 
-    private static final Map<String, TokenType> keywords;
+    private static final TokenType[][] keywords = new TokenType[128][]; // by first character
     static {
-        keywords = new HashMap<>();
         for (TokenType t : TokenType.values()) {
             if (t.isKeyword) {
-                keywords.put(t.lexeme, t);
+                TokenType[] candidates = keywords[t.lexeme.charAt(0)];
+                candidates = candidates == null ? new TokenType[1] : Arrays.copyOf(candidates, candidates.length + 1);
+                candidates[candidates.length - 1] = t;
+                keywords[t.lexeme.charAt(0)] = candidates;
             }
         }
     }
@@ -44,29 +81,118 @@ public class Scanner {
     }
 
     private final String source;
-    private final List<Token> tokens = new ArrayList<>();
     private boolean hasDoc;
-    private String doc;
+    private int docStart = -1;
+    private int docEnd;
     private boolean hasAnnotation;
-    private String annotation;
+    private int annotationStart = -1;
+    private int annotationEnd;
     private int start = 0;
     private int current = 0;
     private int line = 1;
     private int column = 0;
 
+    // current token
+    private TokenType type;
+    private int tokenStart;
+    private int tokenEnd;
+    private int tokenAnnotationStart = -1;
+    private int tokenAnnotationEnd;
+    private int tokenDocStart = -1;
+    private int tokenDocEnd;
+    private int tokenLine;
+    private int tokenColumn;
+
     public Scanner(String source) {
         this.source = source;
     }
 
+    /**
+     * Scans all remaining tokens.
+     *
+     * @return Returns the tokens terminated by an EOF token.
+     */
     public List<Token> scanTokens() {
-        hasDoc = false;
-        while (!isAtEnd()) {
+        List<Token> tokens = new ArrayList<>();
+        while (nextToken() != EOF) {
+            tokens.add(token());
+        }
+        tokens.add(token());
+        return tokens;
+    }
+
+    /**
+     * Advances to the next token, which is then described by the accessors of
+     * the scanner. At the end of the source EOF is returned repeatedly.
+     *
+     * @return Returns the type of the token.
+     */
+    public TokenType nextToken() {
+        type = null;
+        while (type == null && !isAtEnd()) {
             // We are at the beginning of the next lexeme.
             start = current;
             scanToken();
         }
-        tokens.add(new Token(EOF, "", null, null, null, line, column));
-        return tokens;
+        if (type == null) {
+            start = current;
+            setToken(EOF, false);
+            tokenAnnotationStart = -1;
+        }
+        return type;
+    }
+
+    /**
+     * Returns the type of the current token (null before the first call of
+     * nextToken()).
+     */
+    public TokenType type() {
+        return type;
+    }
+
+    public String lexeme() {
+        return source.substring(tokenStart, tokenEnd);
+    }
+
+    /**
+     * Returns the value of a number (Integer) or string (String) or null.
+     */
+    public Object literal() {
+        return literal(source, type, tokenStart, tokenEnd);
+    }
+
+    public String annotation() {
+        return tokenAnnotationStart < 0 ? null : source.substring(tokenAnnotationStart, tokenAnnotationEnd);
+    }
+
+    public String doc() {
+        return tokenDocStart < 0 ? null : source.substring(tokenDocStart, tokenDocEnd);
+    }
+
+    public int line() {
+        return tokenLine;
+    }
+
+    public int column() {
+        return tokenColumn;
+    }
+
+    /**
+     * Returns the current token as an object, i.e. to keep it.
+     */
+    public Token token() {
+        return new Token(source, type, tokenStart, tokenEnd, tokenAnnotationStart, tokenAnnotationEnd,
+                tokenDocStart, tokenDocEnd, tokenLine, tokenColumn);
+    }
+
+    private static Object literal(String source, TokenType type, int start, int end) {
+        if (type == NUMBER) {
+            return Integer.parseInt(source, start, end, 10);
+        } else if (type == STRING) {
+            return source.substring(start + 1, end - 1); // Trim the surrounding quotes.
+        } else {
+            return null;
+        }
     }
 
     private void scanToken() {
@@ -117,7 +243,8 @@ public class Scanner {
                     advance();
                 }
                 if (hasAnnotation) {
-                    annotation = source.substring(start + 2, current); // Trim //
+                    annotationStart = start + 2; // Trim //
+                    annotationEnd = current;
                 }
             } else if (match('*')) { // block comment
                 if (peek() == '*' && peekNext() != '/') { // documentation comment
@@ -133,7 +260,8 @@ public class Scanner {
                 advance(); // consume the * and the /
                 advance();
                 if (hasDoc) {
-                    doc = source.substring(start, current);
+                    docStart = start;
+                    docEnd = current;
                 }
             } else {
                 addToken(SLASH);
@@ -184,17 +312,26 @@ public class Scanner {
     private void identifier() {
         while (isAlphaNumeric(peek()))
             advance();
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null)
-            type = IDENTIFIER;
-        addToken(type);
+        addToken(keyword());
+    }
+
+    private TokenType keyword() {
+        TokenType[] candidates = keywords[source.charAt(start)];
+        if (candidates != null) {
+            int length = current - start;
+            for (TokenType t : candidates) {
+                if (t.lexeme.length() == length && source.regionMatches(start, t.lexeme, 0, length)) {
+                    return t;
+                }
+            }
+        }
+        return IDENTIFIER;
     }
 
     private void number() {
         while (isDigit(peek()))
             advance();
-        addToken(NUMBER, Integer.parseInt(source.substring(start, current)));
+        addToken(NUMBER);
         // Look for a fractional part.
 //        if (peek() == '.' && isDigit(peekNext())) {
 //            // Consume the "."
@@ -216,7 +353,7 @@ public class Scanner {
             return;
         }
         advance(); // closing "
-        addToken(STRING, source.substring(start + 1, current - 1)); // Trim the surrounding quotes.
+        addToken(STRING);
     }
 
     private boolean match(char expected) {
@@ -262,13 +399,19 @@ public class Scanner {
     }
 
     private void addToken(TokenType type) {
-        addToken(type, null);
+        setToken(type, hasDoc);
+        hasDoc = false;
     }
 
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(
-                new Token(type, text, literal, hasAnnotation ? annotation : null, hasDoc ? doc : null, line, column));
-        hasDoc = false;
+    private void setToken(TokenType type, boolean withDoc) {
+        this.type = type;
+        tokenStart = start;
+        tokenEnd = current;
+        tokenAnnotationStart = hasAnnotation ? annotationStart : -1;
+        tokenAnnotationEnd = annotationEnd;
+        tokenDocStart = withDoc ? docStart : -1;
+        tokenDocEnd = docEnd;
+        tokenLine = line;
+        tokenColumn = column;
     }
 }
@@ -0,0 +1,95 @@
+package io.github.axelkern.hack.util;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Immutable list view of the lines of a memory-mapped text file. The file is
+ * mapped and indexed once; a line is only decoded into a String when it is
+ * accessed. Lines are terminated by \n, \r or \r\n, like String.lines().
+ */
+public final class MappedTextFile extends AbstractList<String> implements RandomAccess {
+    private final MappedByteBuffer buffer;
+    private final int[] lineStart;
+    private final int[] lineEnd;
+    private final int lines;
+
+    private MappedTextFile(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        int capacity = Math.max(16, buffer.limit() / 16);
+        int[] starts = new int[capacity];
+        int[] ends = new int[capacity];
+        int count = 0;
+        int start = 0;
+        int pos = 0;
+        int limit = buffer.limit();
+        while (pos < limit) {
+            byte b = buffer.get(pos);
+            if (b == '\n' || b == '\r') {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+                starts[count] = start;
+                ends[count] = pos;
+                count++;
+                if (b == '\r' && pos + 1 < limit && buffer.get(pos + 1) == '\n') {
+                    pos++;
+                }
+                start = pos + 1;
+            }
+            pos++;
+        }
+        if (start < limit) { // last line without terminator
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count + 1);
+                ends = Arrays.copyOf(ends, count + 1);
+            }
+            starts[count] = start;
+            ends[count] = limit;
+            count++;
+        }
+        lineStart = starts;
+        lineEnd = ends;
+        lines = count;
+    }
+
+    /**
+     * Maps the specified file into memory and indexes its lines.
+     *
+     * @param file The file to be mapped.
+     * @return Returns the lines of the file.
+     * @throws IOException If the file cannot be read or is larger than 2 GB.
+     */
+    public static MappedTextFile open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + file);
+            }
+            // the mapping stays valid after the channel has been closed
+            return new MappedTextFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= lines) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        byte[] bytes = new byte[lineEnd[index] - lineStart[index]];
+        buffer.get(lineStart[index], bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int size() {
+        return lines;
+    }
+}
@@ -10,10 +10,13 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class Util {
     static {
@@ -115,6 +118,30 @@ public class Util {
         }
     }
 
+    /**
+     * Searches a directory tree for files with the specified extension and groups
+     * them by the directory they are located in.
+     * 
+     * @param path      The root of the tree or a single file.
+     * @param extension The extension of the files (i.e. ".vm").
+     * @return Returns the files of each directory (sorted by directory) in the
+     *         same order as getFileList() would list them.
+     */
+    public static Map<Path, List<Path>> getFileTree(Path path, String extension) {
+        Map<Path, List<Path>> tree = new TreeMap<>();
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.walk(path)) {
+                files.filter(Files::isRegularFile).filter(file -> file.toString().endsWith(extension))
+                        .forEach(file -> tree.computeIfAbsent(file.getParent(), k -> new ArrayList<>()).add(file));
+            } catch (Exception e) {
+                return tree;
+            }
+        } else if (Files.isRegularFile(path)) {
+            tree.put(path.toAbsolutePath().getParent(), new ArrayList<>(List.of(path)));
+        }
+        return tree;
+    }
+
     /**
      * Compares two Records, ignoring fields containing a null value.
      * 
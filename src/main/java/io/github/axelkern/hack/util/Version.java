@@ -1,5 +1,7 @@
 package io.github.axelkern.hack.util;
 
+import java.io.PrintStream;
+
 public class Version {
     public static final String APPLICATION = "Hack Compiler Collection";
     public static final String AUTHOR = "Axel Kern";
@@ -24,11 +26,15 @@ public class Version {
     }
 
     public static void print(String module) {
-        System.out.print(APPLICATION + " (created " + YEAR + " by " + AUTHOR + ")");
+        print(System.out, module);
+    }
+
+    public static void print(PrintStream out, String module) {
+        out.print(APPLICATION + " (created " + YEAR + " by " + AUTHOR + ")");
         if (module != null) {
-            System.out.println(" - " + module);
+            out.println(" - " + module);
         } else {
-            System.out.println();
+            out.println();
         }
     }
 }
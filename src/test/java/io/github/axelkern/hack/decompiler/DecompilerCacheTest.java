@@ -0,0 +1,90 @@
+package io.github.axelkern.hack.decompiler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DecompilerCacheTest {
+    private static final String CONFIGURATION = "test";
+    private static final List<String> MAIN = List.of("function Main.main 0", "push constant 0", "return");
+
+    @TempDir
+    Path dir;
+    private Path cacheDir;
+    private Map<String, Path> files;
+
+    @BeforeEach
+    void writeProgram() throws IOException {
+        cacheDir = dir.resolve("cache");
+        files = Map.of("Main", Files.write(dir.resolve("Main.vm"), MAIN));
+    }
+
+    @Test
+    void missUntilSaved() throws IOException {
+        DecompilerCache cache = new DecompilerCache(cacheDir, files, CONFIGURATION, System.err);
+        assertFalse(cache.isComplete());
+        assertNull(cache.get("Main"));
+        fill(cache, "class Main {}");
+        assertEquals("class Main {}", cache.get("Main"));
+
+        cache = new DecompilerCache(cacheDir, files, CONFIGURATION, System.err);
+        assertTrue(cache.isComplete());
+        assertEquals("class Main {}", cache.get("Main"));
+    }
+
+    @Test
+    void changedConfigurationMisses() throws IOException {
+        fill(new DecompilerCache(cacheDir, files, CONFIGURATION, System.err), "class Main {}");
+        DecompilerCache cache = new DecompilerCache(cacheDir, files, CONFIGURATION + " --char-as-int", System.err);
+        assertFalse(cache.isComplete());
+        assertNull(cache.get("Main"));
+    }
+
+    @Test
+    void removedEntryIsIncomplete() throws IOException {
+        fill(new DecompilerCache(cacheDir, files, CONFIGURATION, System.err), "class Main {}");
+        deleteEntries();
+        assertFalse(new DecompilerCache(cacheDir, files, CONFIGURATION, System.err).isComplete());
+    }
+
+    @Test
+    void completeProgramKeepsEntriesRemovedAfterOpening() throws IOException {
+        fill(new DecompilerCache(cacheDir, files, CONFIGURATION, System.err), "class Main {}");
+        DecompilerCache cache = new DecompilerCache(cacheDir, files, CONFIGURATION, System.err);
+        assertTrue(cache.isComplete());
+        deleteEntries();
+        assertEquals("class Main {}", cache.get("Main"));
+    }
+
+    /**
+     * Analyzes the program and stores the Jack code and the manifest.
+     */
+    private void fill(DecompilerCache cache, String jackCode) {
+        Map<String, VmCode> classes = Map.of("Main", VmCode.parse(MAIN));
+        DecompilationEngine decompiler = new DecompilationEngine(DecompilerOptions.DEFAULT);
+        decompiler.analyze(classes);
+        cache.update(decompiler, classes);
+        cache.put("Main", jackCode);
+        cache.save();
+    }
+
+    private void deleteEntries() throws IOException {
+        try (Stream<Path> entries = Files.list(cacheDir)) {
+            for (Path entry : entries.filter(file -> file.toString().endsWith(".jack")).toList()) {
+                Files.delete(entry);
+            }
+        }
+    }
+}
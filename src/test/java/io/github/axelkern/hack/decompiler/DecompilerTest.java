@@ -0,0 +1,122 @@
+package io.github.axelkern.hack.decompiler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import picocli.CommandLine;
+
+/**
+ * Decompiles the programs in the golden directory of the test resources and
+ * compares the result with the .jack files next to the .vm files. The golden
+ * directory is also the corpus of the CorpusBenchmark, so it only contains
+ * programs decompiled with the default options.
+ */
+class DecompilerTest {
+
+    @TempDir
+    Path dir;
+    private String output;
+
+    @Test
+    void goldenPrograms() throws Exception {
+        Path golden = Path.of(DecompilerTest.class.getResource("golden").toURI());
+        try (Stream<Path> programs = Files.list(golden)) {
+            for (Path program : programs.filter(Files::isDirectory).sorted().toList()) {
+                assertGolden("golden/" + program.getFileName());
+            }
+        }
+    }
+
+    @Test
+    void jobsDontChangeOutput() throws Exception {
+        assertGolden("golden/literals", "--jobs", "4");
+    }
+
+    @Test
+    void limitedPassesDontDependOnJobs() throws Exception {
+        assertGolden("max-passes-1", "--max-passes", "1");
+        assertGolden("max-passes-1", "--max-passes", "1", "--jobs", "4");
+    }
+
+    @Test
+    void cacheHitAndMiss(@TempDir Path cacheDir) throws Exception {
+        String cache = cacheDir.toString();
+        assertGolden("golden/literals", "--cache", cache);
+        assertTrue(output.contains("Decompiling Main.vm"), output);
+        assertGolden("golden/literals", "--cache", cache);
+        assertTrue(output.contains("using cached results"), output);
+        for (Path entry : list(cacheDir, ".jack")) {
+            Files.delete(entry);
+        }
+        assertGolden("golden/literals", "--cache", cache);
+        assertTrue(output.contains("Analyzed 2 classes"), output);
+    }
+
+    /**
+     * Decompiles a program of the test resources in the temp directory and
+     * compares each class with its golden file.
+     */
+    private void assertGolden(String program, String... args) throws IOException, URISyntaxException {
+        Path golden = copyProgram(program);
+        assertEquals(0, decompile(args), program + "\n" + output);
+        for (Path vmFile : list(golden, ".vm")) {
+            String jackFile = vmFile.getFileName().toString().replace(".vm", ".jack");
+            assertEquals(Files.readAllLines(golden.resolve(jackFile)), Files.readAllLines(dir.resolve(jackFile)),
+                    program + "/" + jackFile);
+        }
+    }
+
+    /**
+     * Copies the .vm files of a program of the test resources to the temp
+     * directory, replacing the files of the previous program.
+     *
+     * @return Returns the golden directory of the program.
+     */
+    Path copyProgram(String program) throws IOException, URISyntaxException {
+        Path golden = Path.of(DecompilerTest.class.getResource(program).toURI());
+        for (Path file : list(dir, ".vm")) {
+            Files.delete(file);
+        }
+        for (Path vmFile : list(golden, ".vm")) {
+            Files.copy(vmFile, dir.resolve(vmFile.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return golden;
+    }
+
+    /**
+     * Runs the command line on the temp directory, overwriting existing .jack
+     * files. The output of the run is kept in output.
+     *
+     * @return Returns the exit code.
+     */
+    int decompile(String... args) {
+        List<String> commandLine = new ArrayList<>(List.of(".", "--overwrite"));
+        commandLine.addAll(List.of(args));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true, StandardCharsets.UTF_8);
+        int exitCode = new CommandLine(new Decompiler(out, out, dir)).execute(commandLine.toArray(String[]::new));
+        output = bytes.toString(StandardCharsets.UTF_8);
+        return exitCode;
+    }
+
+    private static List<Path> list(Path dir, String extension) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.toString().endsWith(extension)).sorted().toList();
+        }
+    }
+}
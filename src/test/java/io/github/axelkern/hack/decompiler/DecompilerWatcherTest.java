@@ -0,0 +1,137 @@
+package io.github.axelkern.hack.decompiler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Changes a program of three classes calling each other in a chain (First
+ * calls Middle, Middle calls Last). Last passes its argument to
+ * Output.printString, so the String type travels back along the chain to the
+ * local variable of First. Buffer isn't connected to the chain, so only the
+ * chain is analyzed again, but Buffer derives the order of array and index
+ * before. After each update, the .jack files must be the same as after
+ * decompiling the changed program from scratch.
+ */
+class DecompilerWatcherTest {
+    /* @formatter:off */
+    private static final List<String> FIRST = List.of(
+            "function First.main 1",
+            "push local 0",
+            "call Middle.pass 1",
+            "pop temp 0",
+            "push constant 0",
+            "return");
+    private static final List<String> MIDDLE = List.of(
+            "function Middle.pass 0",
+            "push argument 0",
+            "call Last.take 1",
+            "return");
+    private static final List<String> LAST = List.of(
+            "function Last.take 0",
+            "push argument 0",
+            "call Output.printString 1",
+            "pop temp 0",
+            "push constant 0",
+            "return");
+    private static final List<String> BUFFER = List.of(
+            "function Buffer.get 0",
+            "push argument 0",
+            "push constant 5",
+            "add",
+            "pop pointer 1",
+            "push that 0",
+            "return");
+    /* @formatter:on */
+
+    @TempDir
+    Path dir;
+    private DecompilerWatcher watcher;
+
+    @BeforeEach
+    void decompileChain() throws IOException {
+        Files.write(dir.resolve("First.vm"), FIRST);
+        Files.write(dir.resolve("Middle.vm"), MIDDLE);
+        Files.write(dir.resolve("Last.vm"), LAST);
+        Files.write(dir.resolve("Buffer.vm"), BUFFER);
+        PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+        Decompiler decompiler = new Decompiler(out, out, dir);
+        decompiler.overwrite = true;
+        watcher = new DecompilerWatcher(decompiler, DecompilerOptions.DEFAULT, dir, out, out);
+        watcher.decompileAll();
+        assertEquals(decompileFromScratch(), readJackFiles());
+    }
+
+    @Test
+    void middleNoLongerPassesArgument() throws IOException {
+        change("Middle.vm", List.of("function Middle.pass 0", "push constant 7", "call Last.take 1", "return"));
+    }
+
+    @Test
+    void middleNoLongerCallsLast() throws IOException {
+        change("Middle.vm", List.of("function Middle.pass 0", "push argument 0", "return"));
+    }
+
+    @Test
+    void lastNoLongerPrints() throws IOException {
+        // First is neither a caller nor a callee of Last
+        change("Last.vm", List.of("function Last.take 0", "push constant 0", "return"));
+    }
+
+    @Test
+    void middleRemoved() throws IOException {
+        Files.delete(dir.resolve("Middle.vm"));
+        Files.delete(dir.resolve("Middle.jack"));
+        watcher.update(Set.of(dir.resolve("Middle.vm")));
+        assertEquals(decompileFromScratch(), readJackFiles());
+    }
+
+    /**
+     * Rewrites a .vm file, updates the watcher and compares the result with
+     * decompiling from scratch.
+     */
+    private void change(String fileName, List<String> source) throws IOException {
+        Map<String, String> before = readJackFiles();
+        Files.write(dir.resolve(fileName), source);
+        watcher.update(Set.of(dir.resolve(fileName)));
+        Map<String, String> expected = decompileFromScratch();
+        assertEquals(expected, readJackFiles());
+        assertNotEquals(before, expected, "the change doesn't affect the Jack code");
+    }
+
+    private Map<String, String> decompileFromScratch() throws IOException {
+        Map<String, List<String>> classes = new TreeMap<>();
+        for (Path vmFile : list(".vm")) {
+            classes.put(Decompiler.getClassName(vmFile), Files.readAllLines(vmFile));
+        }
+        return new TreeMap<>(new ProgramDecompiler(DecompilerOptions.DEFAULT).decompile(classes));
+    }
+
+    private Map<String, String> readJackFiles() throws IOException {
+        Map<String, String> result = new TreeMap<>();
+        for (Path jackFile : list(".jack")) {
+            result.put(Decompiler.getClassName(jackFile), Files.readString(jackFile));
+        }
+        return result;
+    }
+
+    private List<Path> list(String extension) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.toString().endsWith(extension)).sorted().toList();
+        }
+    }
+}
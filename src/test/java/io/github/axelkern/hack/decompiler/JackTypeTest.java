@@ -0,0 +1,59 @@
+package io.github.axelkern.hack.decompiler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class JackTypeTest {
+    private final JackType types = new JackType();
+
+    @Test
+    void namesRoundTrip() {
+        for (String name : List.of("String", "Array", "char", "boolean", "int", "void", "$forced$int", "Point")) {
+            assertEquals(name, types.name(types.of(name)));
+        }
+        assertEquals(JackType.UNKNOWN, types.of(null));
+        assertEquals(JackType.FORCED_INT, types.of("$forced$int"));
+        assertEquals("int", types.declaredName(JackType.FORCED_INT));
+    }
+
+    @Test
+    void classTypesAreInterned() {
+        int point = types.of("Point");
+        assertEquals(point, types.of(new String("Point")));
+        assertNotEquals(point, types.of("Line"));
+        assertTrue(point > JackType.VOID);
+    }
+
+    @Test
+    void registriesAreIndependent() {
+        JackType other = new JackType();
+        int line = other.of("Line");
+        assertEquals(line, types.of("Point")); // the first class type of each registry
+        assertEquals("Line", other.name(line));
+        assertEquals(JackType.STRING, other.of("String"));
+    }
+
+    @Test
+    void priorities() {
+        // from highest to lowest priority
+        List<Integer> ordered = List.of(types.of("Point"), JackType.STRING, JackType.ARRAY, JackType.CHAR,
+                JackType.FORCED_INT, JackType.BOOLEAN, JackType.INT, JackType.VOID);
+        for (int i = 0; i < ordered.size(); i++) {
+            String name = types.name(ordered.get(i));
+            assertTrue(JackType.overrides(ordered.get(i), JackType.UNKNOWN));
+            assertTrue(JackType.overrides(name, null));
+            for (int j = 0; j < ordered.size(); j++) {
+                assertEquals(i < j, JackType.overrides(ordered.get(i), ordered.get(j)), i + " " + j);
+                assertEquals(i < j, JackType.overrides(name, types.name(ordered.get(j))), name);
+            }
+        }
+        assertFalse(JackType.overrides(types.of("Line"), types.of("Point")));
+        assertFalse(JackType.overrides("Line", "Point"));
+    }
+}
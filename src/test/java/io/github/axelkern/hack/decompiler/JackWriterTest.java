@@ -0,0 +1,84 @@
+package io.github.axelkern.hack.decompiler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.StringWriter;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class JackWriterTest {
+    private static final String NL = System.lineSeparator();
+
+    @Test
+    void bracesInStringLiteralsDontChangeIndentation() {
+        StringWriter out = new StringWriter();
+        JackWriter writer = new JackWriter(out);
+        writer.line("class Main {");
+        writer.line("function void main() {");
+        writer.line("do Output.printString(\"{\");");
+        writer.line("do Output.printString(\"}\");");
+        writer.line("do Output.printString(\"}}\");");
+        writer.line("return;");
+        writer.line("}");
+        writer.line("}");
+        writer.flush();
+        assertEquals("class Main {" + NL
+                + "    function void main() {" + NL
+                + "        do Output.printString(\"{\");" + NL
+                + "        do Output.printString(\"}\");" + NL
+                + "        do Output.printString(\"}}\");" + NL
+                + "        return;" + NL
+                + "    }" + NL
+                + "}" + NL, out.toString());
+    }
+
+    @Test
+    void forkContinuesWithIndentationOutsideOfLiterals() {
+        StringWriter out = new StringWriter();
+        JackWriter writer = new JackWriter(out);
+        writer.line("class Main {");
+        StringWriter partOut = new StringWriter();
+        JackWriter part = writer.fork(partOut);
+        part.line("function void main() {");
+        part.line("do Output.printString(\"{{\");");
+        part.line("return;");
+        part.line("}");
+        part.flush();
+        writer.join(part, partOut.toString());
+        writer.line("}");
+        writer.flush();
+        assertEquals("class Main {" + NL
+                + "    function void main() {" + NL
+                + "        do Output.printString(\"{{\");" + NL
+                + "        return;" + NL
+                + "    }" + NL
+                + "}" + NL, out.toString());
+    }
+
+    @Test
+    void renamesCompleteIdentifiersOutsideOfLiterals() {
+        StringWriter out = new StringWriter();
+        JackWriter writer = new JackWriter(out);
+        writer.setClassNames(Map.of("static1", "count"));
+        writer.line("let local1 = local10 + static1;");
+        writer.line("do Output.printString(\"local1 static1\");");
+        writer.line("let local10 = 1local1;");
+        writer.flush(Map.of("local1", "x", "local10", "y"));
+        assertEquals("let x = y + count;" + NL
+                + "do Output.printString(\"local1 static1\");" + NL
+                + "let y = 1local1;" + NL, out.toString());
+    }
+
+    @Test
+    void collapsesBlankLines() {
+        StringWriter out = new StringWriter();
+        JackWriter writer = new JackWriter(out);
+        writer.line("var int local0;");
+        writer.line("");
+        writer.line("");
+        writer.line("return;");
+        writer.flush();
+        assertEquals("var int local0;" + NL + NL + "return;" + NL, out.toString());
+    }
+}
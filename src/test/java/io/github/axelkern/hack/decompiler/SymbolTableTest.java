@@ -0,0 +1,132 @@
+package io.github.axelkern.hack.decompiler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BinaryOperator;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.axelkern.hack.decompiler.SymbolTable.Attribute;
+import io.github.axelkern.hack.decompiler.SymbolTable.Property;
+
+class SymbolTableTest {
+
+    /** The type with the higher priority wins (like the engine). */
+    private static final BinaryOperator<String> JOIN_TYPE = (currentType, type) -> JackType.overrides(type,
+            currentType) ? type : currentType;
+
+    /**
+     * Remembers the keys added by the declaration reader.
+     */
+    private static final class RecordingTable extends SymbolTable {
+        private final List<String[]> keys = new ArrayList<>();
+
+        @Override
+        void add(String key1, String key2, String value) {
+            keys.add(new String[] { key1, key2 });
+            super.add(key1, key2, value);
+        }
+    }
+
+    @Test
+    void snapshotRoundTrip() throws IOException {
+        RecordingTable symbols = new RecordingTable();
+        try (InputStream in = DeclarationReader.class.getResourceAsStream("decompiler.def")) {
+            DeclarationReader.readDeclarations(symbols, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        symbols.join("Main.main", Property.RETURN, "void", JOIN_TYPE);
+        symbols.join("Main", "Main.main", Segment.THIS, 1, Attribute.TYPE, "Array", JOIN_TYPE);
+        symbols.join("Main", "Main.main", Segment.LOCAL, 10, Attribute.TYPE, "char", JOIN_TYPE);
+        symbols.join("Main", "Main.main", Segment.LOCAL, 10, Attribute.NAME, "c", JOIN_TYPE);
+        symbols.add("Main", "unknown$KEY", "other");
+
+        SymbolTable snapshot = SymbolTable.readSnapshot(write(symbols));
+        assertEquals(symbols.size(), snapshot.size());
+        assertTrue(symbols.keys.size() > 100);
+        for (String[] key : symbols.keys) {
+            assertEquals(symbols.get(key[0], key[1]), snapshot.get(key[0], key[1]), key[0] + " " + key[1]);
+        }
+        assertEquals("void", snapshot.get("Output.printString", Property.RETURN));
+        assertEquals("FUNCTION", snapshot.get("Output.printString", Property.TYPE));
+        assertEquals("String", snapshot.get("Output", "Output.printString", Segment.ARGUMENT, 0, Attribute.TYPE));
+        assertEquals("void", snapshot.get("Main.main", Property.RETURN));
+        assertEquals("Array", snapshot.get("Main", "Main.main", Segment.THIS, 1, Attribute.TYPE));
+        assertEquals("char", snapshot.get("Main", "Main.main", Segment.LOCAL, 10, Attribute.TYPE));
+        assertEquals("c", snapshot.get("Main", "Main.main", Segment.LOCAL, 10, Attribute.NAME));
+        assertNull(snapshot.get("Main", "Main.main", Segment.LOCAL, 1, Attribute.TYPE));
+        assertEquals("other", snapshot.get("Main", "unknown$KEY"));
+    }
+
+    @Test
+    void layerFallsBackToSnapshot() throws IOException {
+        SymbolTable declarations = new SymbolTable();
+        declarations.add("Output.printString", "arg0", "String");
+        SymbolTable symbols = new SymbolTable(SymbolTable.readSnapshot(write(declarations)));
+        assertTrue(symbols.join("Main", "Main.main", Segment.LOCAL, 0, Attribute.TYPE, "int", JOIN_TYPE));
+        assertEquals("String", symbols.get("Output", "Output.printString", Segment.ARGUMENT, 0, Attribute.TYPE));
+        assertEquals(1, symbols.size());
+    }
+
+    @Test
+    void concurrentJoinsConverge() throws Exception {
+        // each thread joins all types in another order, the type with the highest priority must win
+        List<String> types = List.of("int", "boolean", "$forced$int", "char", "Array", "String", "Point");
+        int numThreads = 8;
+        for (int round = 0; round < 50; round++) {
+            SymbolTable symbols = new SymbolTable(new SymbolTable());
+            symbols.trackChanges(true);
+            ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+            try {
+                List<Future<?>> results = new ArrayList<>();
+                for (int thread = 0; thread < numThreads; thread++) {
+                    int offset = thread;
+                    results.add(executor.submit(() -> {
+                        for (int i = 0; i < types.size(); i++) {
+                            String type = types.get((i + offset) % types.size());
+                            for (int slot = 0; slot < 20; slot++) {
+                                symbols.join("Main", "Main.main", Segment.LOCAL, slot, Attribute.TYPE, type,
+                                        JOIN_TYPE);
+                                symbols.join("Main", "Main.main", Segment.STATIC, slot, Attribute.TYPE, type,
+                                        JOIN_TYPE);
+                            }
+                            symbols.join("Main.main", Property.RETURN, type, JOIN_TYPE);
+                        }
+                    }));
+                }
+                for (Future<?> result : results) {
+                    result.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            for (int slot = 0; slot < 20; slot++) {
+                assertEquals("Point", symbols.get("Main", "Main.main", Segment.LOCAL, slot, Attribute.TYPE));
+                assertEquals("Point", symbols.get("Main", "Main.main", Segment.STATIC, slot, Attribute.TYPE));
+            }
+            assertEquals("Point", symbols.get("Main.main", Property.RETURN));
+            assertEquals(41, symbols.size());
+            assertEquals(Set.of("Main"), symbols.takeChanges());
+        }
+    }
+
+    private static byte[] write(SymbolTable symbols) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            symbols.writeSnapshot(out);
+        }
+        return bytes.toByteArray();
+    }
+}